@@ -7,18 +7,48 @@ CREATE TABLE IF NOT EXISTS configuration
 
 CREATE TABLE IF NOT EXISTS videos
 (
-    video_hash varchar(1000) PRIMARY KEY,
+    video_id integer PRIMARY KEY,
+    video_hash varchar(1000) UNIQUE,
     video_name varchar(1000),
-    video_path varchar(1000)
+    video_path varchar(1000),
+    video_fps real
 );
 
 CREATE TABLE IF NOT EXISTS images
 (
-    image_haar varchar(1000),
+    image_haar blob,
     image_number integer,
-    video_hash varchar(1000) REFERENCES videos(Hash),
-    image_path varchar(1000)
+    image_start integer,
+    image_end integer,
+    video_id integer REFERENCES videos(video_id),
+    image_band0 integer,
+    image_band1 integer,
+    image_band2 integer,
+    image_band3 integer,
+    image_vector blob
+);
+
+CREATE TABLE IF NOT EXISTS stoplist
+(
+    image_haar blob PRIMARY KEY,
+    video_count integer,
+    image_count integer
+);
+
+CREATE TABLE IF NOT EXISTS hash_cache
+(
+    hash_path varchar(1000) PRIMARY KEY,
+    hash_size integer,
+    hash_mtime integer,
+    hash_quick varchar(40),
+    hash_value varchar(1000)
 );
 
 -- Creo los indices
-CREATE INDEX IF NOT EXISTS  IX_Images_Haar on images (image_haar);
\ No newline at end of file
+CREATE INDEX IF NOT EXISTS  IX_Images_Haar on images (image_haar, video_id, image_number);
+CREATE INDEX IF NOT EXISTS  IX_Images_Video on images (video_id, image_number);
+CREATE INDEX IF NOT EXISTS  IX_Images_Band0 on images (image_band0);
+CREATE INDEX IF NOT EXISTS  IX_Images_Band1 on images (image_band1);
+CREATE INDEX IF NOT EXISTS  IX_Images_Band2 on images (image_band2);
+CREATE INDEX IF NOT EXISTS  IX_Images_Band3 on images (image_band3);
+CREATE INDEX IF NOT EXISTS  IX_HashCache_Quick on hash_cache (hash_quick);
@@ -120,6 +120,51 @@ public class ConfigurationManager
         return value;
     }
 
+    /**
+     * Obtiene el valor numerico de una propiedad.
+     * @param key Clave de la propiedad
+     * @param defaultValue Valor que se devuelve si la propiedad no existe o
+     * no es un número
+     * @return Valor de la propiedad
+     */
+    public static int getIntProperty(final String key, final int defaultValue)
+    {
+        final String value = getProperty(key);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Obtiene el valor numerico de una propiedad que puede ser muy grande.
+     * Se admiten los separadores de miles (por ejemplo <code>5.000.000</code>).
+     * @param key Clave de la propiedad
+     * @param defaultValue Valor que se devuelve si la propiedad no existe o
+     * no es un número
+     * @return Valor de la propiedad
+     */
+    public static long getLongProperty(final String key, final long defaultValue)
+    {
+        final String value = getProperty(key);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Long.parseLong(value.trim().replaceAll("[.,]", ""));
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
     /**
      * Establece el valor de una propiedad de la aplicación.
      * @param key Clave de la propiedad
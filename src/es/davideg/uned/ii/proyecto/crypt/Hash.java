@@ -22,20 +22,50 @@
 
 package es.davideg.uned.ii.proyecto.crypt;
 
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Permite calcular el hash de un fichero.
+ * <p>Permite calcular el hash de un fichero.</p>
+ * <p>Además del hash SHA de todo el contenido, que identifica a los videos
+ * en la base de datos, se puede calcular un hash rápido a partir del tamaño
+ * y de unos pocos bloques repartidos por el fichero. Leer esos bloques
+ * cuesta lo mismo en un fichero de 100 MB que en uno de 20 GB.</p>
+ * <p>Con <code>hash.mode=tree</code> los videos se identifican con un hash
+ * en árbol, que se calcula en paralelo (ver <code>getTreeHash</code>).
+ * Estos hashes empiezan por <code>TREE_TAG</code>, así no se confunden con
+ * los hash SHA de los videos que ya están en la base de datos.</p>
  * @author David Escribano García
  */
 public class Hash
 {
+    /**
+     * Prefijo de los hash en árbol, con su versión.
+     */
+    public static final String TREE_TAG = "t1-";
+
+    private static final String MODE_TREE = "tree";
+    private static final int DEFAULT_CHUNK_SIZE = 8 << 20;  // Bytes de cada hoja del árbol
+    private static final byte LEAF = 0;                     // Prefijos de los nodos del árbol
+    private static final byte ROOT = 1;
+    private static final int BUFFER_SIZE = 1 << 20;     // Bytes leidos en cada lectura
+    private static final int QUICK_BLOCKS = 16;         // Bloques del hash rápido
+    private static final int QUICK_BLOCK_SIZE = 64 << 10;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     /**
      * Obtiene el hash SHA de un fichero
@@ -46,27 +76,255 @@ public class Hash
      */
     public static String getHash(File f) throws NoSuchAlgorithmException, FileNotFoundException, IOException
     {
+        MessageDigest md = MessageDigest.getInstance("SHA");
+        FileInputStream fis = new FileInputStream(f);
+        try
+        {
+            // Leo con un buffer directo grande, sin copiar los datos a la pila de java
+            final FileChannel channel = fis.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Obtiene el hash que identifica a un video en la base de datos, según
+     * <code>hash.mode</code>: el hash SHA (<code>sha1</code>, por defecto) o
+     * el hash en árbol (<code>tree</code>).
+     * @param f Fichero del video
+     * @return Hash del video
+     * @throws NoSuchAlgorithmException
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws InterruptedException Si se interrumpe el cálculo en paralelo
+     */
+    public static String getVideoHash(File f) throws NoSuchAlgorithmException, FileNotFoundException, IOException, InterruptedException
+    {
+        if (!MODE_TREE.equalsIgnoreCase(ConfigurationManager.getProperty("hash.mode")))
+            return getHash(f);
+        return getConfiguredTreeHash(f);
+    }
+
+    /**
+     * Obtiene el hash en árbol de un fichero con los trozos y threads de la
+     * configuración (<code>hash.chunk</code> y <code>hash.threads</code>).
+     */
+    private static String getConfiguredTreeHash(File f) throws NoSuchAlgorithmException, FileNotFoundException, IOException, InterruptedException
+    {
+        final int threads = ConfigurationManager.getIntProperty("hash.threads", 0);
+        return getTreeHash(f
+                         , Math.max(1, ConfigurationManager.getIntProperty("hash.chunk", DEFAULT_CHUNK_SIZE))
+                         , threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Obtiene el hash de un fichero con el mismo método que otro hash, para
+     * poder compararlos aunque se hayan calculado con distinto
+     * <code>hash.mode</code>.
+     * @param f Fichero
+     * @param reference Hash de referencia
+     * @return Hash del fichero
+     * @throws NoSuchAlgorithmException
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws InterruptedException Si se interrumpe el cálculo en paralelo
+     */
+    public static String getHashLike(File f, final String reference) throws NoSuchAlgorithmException, FileNotFoundException, IOException, InterruptedException
+    {
+        if (isTreeHash(reference) == MODE_TREE.equalsIgnoreCase(ConfigurationManager.getProperty("hash.mode")))
+            return getVideoHash(f);
+        return isTreeHash(reference) ? getConfiguredTreeHash(f) : getHash(f);
+    }
+
+    /**
+     * Indica si un hash es un hash en árbol.
+     * @param hash Hash
+     * @return Verdadero si empieza por <code>TREE_TAG</code>
+     */
+    public static boolean isTreeHash(final String hash)
+    {
+        return hash.startsWith(TREE_TAG);
+    }
+
+    /**
+     * <p>Obtiene el hash en árbol de un fichero.</p>
+     * <p>El fichero se divide en trozos de <code>chunkSize</code> bytes y se
+     * calcula en paralelo el hash SHA de cada uno (las hojas del árbol). La
+     * raíz es el hash SHA del tamaño de los trozos y de los hash de todas las
+     * hojas, en orden. Las hojas y la raíz llevan un prefijo distinto para
+     * que una hoja no pueda pasar por una raíz.</p>
+     * <p>Cada thread lee su trozo con lecturas posicionales sobre el mismo
+     * canal, así la lectura del disco también se hace en paralelo.</p>
+     * @param f Fichero
+     * @param chunkSize Bytes de cada trozo
+     * @param threads Número de threads
+     * @return <code>TREE_TAG</code> seguido del hash de la raíz en hexadecimal
+     * @throws NoSuchAlgorithmException
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws InterruptedException Si se interrumpe la espera de las hojas
+     */
+    public static String getTreeHash(File f, final int chunkSize, final int threads) throws NoSuchAlgorithmException, FileNotFoundException, IOException, InterruptedException
+    {
+        FileInputStream fis = new FileInputStream(f);
+        try
+        {
+            final FileChannel channel = fis.getChannel();
+            final long size = channel.size();
+            final int chunks = (int)Math.max(1, (size + chunkSize - 1) / chunkSize);
+            final ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks));
+            try
+            {
+                final List<Future<byte[]>> leaves = new ArrayList<Future<byte[]>>(chunks);
+                for (int i = 0; i < chunks; i++)
+                {
+                    final long position = (long)i * chunkSize;
+                    final int length = (int)Math.min(chunkSize, size - position);
+                    leaves.add(pool.submit(new Callable<byte[]>()
+                    {
+                        @Override
+                        public byte[] call() throws Exception
+                        {
+                            return hashChunk(channel, position, length);
+                        }
+                    }));
+                }
+
+                MessageDigest md = MessageDigest.getInstance("SHA");
+                md.update(ROOT);
+                md.update(ByteBuffer.allocate(4).putInt(chunkSize).array());
+                for (Future<byte[]> leaf : leaves)
+                {
+                    md.update(leaf.get());
+                }
+                return TREE_TAG + toHex(md.digest());
+            }
+            catch (ExecutionException ex)
+            {
+                final Throwable cause = ex.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException)cause;
+                if (cause instanceof NoSuchAlgorithmException)
+                    throw (NoSuchAlgorithmException)cause;
+                throw new IOException("No se ha podido calcular el hash de " + f.getName() + ": " + cause);
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    /**
+     * Calcula el hash de una hoja del árbol.
+     * @param channel Canal del fichero
+     * @param position Posición del trozo en el fichero
+     * @param length Bytes del trozo
+     * @return Hash SHA del prefijo de hoja y del trozo
+     * @throws NoSuchAlgorithmException
+     * @throws IOException Si el fichero termina antes de lo esperado
+     */
+    private static byte[] hashChunk(final FileChannel channel, final long position, final int length) throws NoSuchAlgorithmException, IOException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA");
+        md.update(LEAF);
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, Math.max(1, length)));
+        long current = position;
+        final long end = position + length;
+        while (current < end)
+        {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - current));
+            final int numRead = channel.read(buffer, current);
+            if (numRead == -1)
+                throw new IOException("El fichero ha cambiado mientras se calculaba su hash");
+            current += numRead;
+            buffer.flip();
+            md.update(buffer);
+        }
+        return md.digest();
+    }
 
+    /**
+     * <p>Obtiene un hash rápido de un fichero: el hash SHA de su tamaño y de
+     * <code>QUICK_BLOCKS</code> bloques de 64 KB repartidos uniformemente,
+     * incluidos el primero y el último.</p>
+     * <p>Dos ficheros con distinto hash rápido son distintos, pero dos
+     * ficheros con el mismo hash rápido pueden diferir fuera de los bloques
+     * leidos, así que una coincidencia hay que confirmarla con el hash
+     * completo. Los ficheros pequeños se leen enteros.</p>
+     * @param f Fichero
+     * @return Hash rápido del fichero
+     * @throws NoSuchAlgorithmException
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static String getQuickHash(File f) throws NoSuchAlgorithmException, FileNotFoundException, IOException
+    {
         MessageDigest md = MessageDigest.getInstance("SHA");
-        InputStream fis = new FileInputStream(f);
-        byte[] buffer = new byte[1024];
-        int numRead;
-        do
+        FileInputStream fis = new FileInputStream(f);
+        try
         {
-            numRead = fis.read(buffer);
-            if (numRead > 0)
+            final FileChannel channel = fis.getChannel();
+            final long size = channel.size();
+            final ByteBuffer buffer = ByteBuffer.allocate(QUICK_BLOCK_SIZE);
+            buffer.putLong(size);
+            buffer.flip();
+            md.update(buffer);
+
+            final long blocks = (size + QUICK_BLOCK_SIZE - 1) / QUICK_BLOCK_SIZE;
+            final int samples = (int)Math.min(blocks, QUICK_BLOCKS);
+            for (int i = 0; i < samples; i++)
             {
-                md.update(buffer, 0, numRead);
+                // Con menos bloques que muestras se leen todos
+                final long block = (samples < 2) ? 0 : i * (blocks - 1) / (samples - 1);
+                long position = block * QUICK_BLOCK_SIZE;
+                buffer.clear();
+                while (buffer.hasRemaining())
+                {
+                    final int numRead = channel.read(buffer, position);
+                    if (numRead == -1)
+                        break;
+                    position += numRead;
+                }
+                buffer.flip();
+                md.update(buffer);
             }
-        } while (numRead != -1);
-        fis.close();
-        byte[] digestBytes = md.digest();
+        }
+        finally
+        {
+            fis.close();
+        }
+        return toHex(md.digest());
+    }
 
-        String result = "";
-        for (int i=0; i < digestBytes.length; i++)
+    /**
+     * Convierte un hash a hexadecimal.
+     * @param digest Bytes del hash
+     * @return Cadena hexadecimal en minúsculas
+     */
+    public static String toHex(final byte[] digest)
+    {
+        final char[] text = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++)
         {
-            result += Integer.toString( ( digestBytes[i] & 0xff ) + 0x100, 16).substring(1);
+            text[2 * i]     = HEX[(digest[i] >>> 4) & 0xf];
+            text[2 * i + 1] = HEX[digest[i] & 0xf];
         }
-        return result;
+        return new String(text);
     }
 }
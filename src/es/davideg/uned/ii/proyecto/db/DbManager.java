@@ -23,20 +23,35 @@
 package es.davideg.uned.ii.proyecto.db;
 
 import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.crypt.Hash;
 import es.davideg.uned.ii.proyecto.image.DatabaseImage;
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
 import es.davideg.uned.ii.proyecto.image.SearchedImage;
+import es.davideg.uned.ii.proyecto.video.FrameExtractor;
+import es.davideg.uned.ii.proyecto.video.FrameStore;
 import es.davideg.uned.ii.proyecto.video.Video;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,19 +69,46 @@ import java.util.logging.Logger;
  *          </ul>
  *      <li>videos: Lista de vídeos en la base de datos</li>
  *          <ul>
+ *              <li>video_id: Identificador numérico del vídeo</li>
  *              <li>video_hash: Identificador único del vídeo</li>
  *              <li>video_name: Nombre del vídeo</li>
  *              <li>video_path: Ruta donde esta el vídeo</li>
+ *              <li>video_fps: Frames por segundo del vídeo</li>
  *          </ul>
- *      <li>images: Lista de imagenes en la base de datos</li>
+ *      <li>images: Tramos de frames consecutivos con la misma huella (ver
+ *      <code>FrameRun</code>)</li>
  *          <ul>
- *              <li>image_haar: Valor numerico que representa la imagen</li>
- *              <li>image_number: Posición que ocupa la imagen dentro del vídeo</li>
- *              <li>video_hash: Video al que pertenece la imagen</li>
- *              <li>image_path: Ruta donde se encuentra la imagen</li>
+ *              <li>image_haar: Huella de las imagenes (ver <code>Fingerprint.toBytes()</code>)</li>
+ *              <li>image_number: Frame que representa al tramo</li>
+ *              <li>image_start: Primer frame del tramo</li>
+ *              <li>image_end: Último frame del tramo</li>
+ *              <li>video_id: Video al que pertenece el tramo</li>
+ *              <li>image_band0..image_band3: Bandas de la huella para la
+ *              busqueda por distancia (ver <code>MultiIndexHash</code>)</li>
+ *              <li>image_vector: Vector de baja resolución del frame (ver
+ *              <code>PixelVector</code>)</li>
+ *          </ul>
+ *      <li>stoplist: Huellas frecuentes (ver <code>FrequentFingerprint</code>)</li>
+ *          <ul>
+ *              <li>image_haar: Huella</li>
+ *              <li>video_count: Número de videos en los que aparece</li>
+ *              <li>image_count: Número de tramos con la huella</li>
+ *          </ul>
+ *      <li>hash_cache: Hash de los ficheros ya leidos</li>
+ *          <ul>
+ *              <li>hash_path: Ruta del fichero</li>
+ *              <li>hash_size: Tamaño del fichero al calcular el hash</li>
+ *              <li>hash_mtime: Fecha de modificación del fichero al calcular el hash</li>
+ *              <li>hash_quick: Hash rápido (ver <code>Hash.getQuickHash(File)</code>)</li>
+ *              <li>hash_value: Hash del fichero</li>
  *          </ul>
  *  </ul>
  * </code></p>
+ * <p>La ruta de cada imagen no se guarda, es el fichero del frame dentro
+ * del directorio del video en <code>FRAMES_PATH</code>
+ * (ver <code>Video.getFrameFile(int)</code>), en el almacén de frames del
+ * video o, si no se han guardado, se obtiene del video
+ * (ver <code>FrameExtractor</code>).</p>
  * @author David Escribano García
  */
 public class DbManager
@@ -74,52 +116,193 @@ public class DbManager
 
     private String connectionString;
     private Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private volatile FingerprintIndex index;
+    private volatile DbSettings settings;
+    private volatile FingerprintFilter filter;
+    private volatile List<FrequentFingerprint> stopList;
+    private FingerprintFilter building;
+    private boolean filterSaved = false;
+    private int nextVideoId = -1;
+    private final Set<String> addedWhileLoading = new HashSet<String>();
     private static final Logger logger = Logger.getLogger(DbManager.class.getName());
 
+    /**
+     * Versión del esquema de la base de datos que genera esta versión de la
+     * aplicación. Las bases de datos sin la propiedad <code>SCHEMA_VERSION
+     * </code> son de la versión 1.
+     */
+    public static final int SCHEMA_VERSION = 9;
+
+    /**
+     * Valor de <code>PRAGMA auto_vacuum</code> en modo incremental.
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Número máximo de valores que se buscan de una vez con <code>IN</code>,
+     * sqlite no admite más de 999 parametros por consulta
+     */
+    private static final int MAX_PARAMETERS = 500;
+
+    /**
+     * Número máximo de valores de banda que se buscan antes de recorrer la
+     * tabla entera
+     */
+    private static final long MAX_VARIANTS = 100000;
+
+    /**
+     * Número de imagenes que se leen de cada vez al cargar el índice en memoria
+     */
+    private static final int INDEX_CHUNK = 20000;
+
     /**
      * Listado de propiedades admitido en la base de datos
      */
     public enum DbProperty
     {
-        VIDEO_PROCESSOR, FRAMES_PATH, IMAGE_SIZE_X, IMAGE_SIZE_Y, HAAR_SIZE_X, HAAR_SIZE_Y;
+        VIDEO_PROCESSOR, FRAMES_PATH, IMAGE_SIZE_X, IMAGE_SIZE_Y, HAAR_SIZE_X, HAAR_SIZE_Y, SCHEMA_VERSION;
     };
 
     /**
-     * Conecta con la base de datos definida en <code>connectionString</code>
+     * <p>Conecta con la base de datos definida en <code>connectionString</code>.</p>
+     * <p>La conexión se mantiene abierta hasta que se llama a
+     * <code>disconnect()</code> o se cambia de base de datos.</p>
      * @return Conexion con la base de datos
      * @throws ClassNotFoundException
      * @throws SQLException
      */
-    private Connection connect() throws ClassNotFoundException, SQLException
+    private synchronized Connection connect() throws ClassNotFoundException, SQLException
     {
         if (conn == null || conn.isClosed())
         {
             Class.forName("org.sqlite.JDBC");
             conn = DriverManager.getConnection(connectionString);
+            configure(conn);
+            settings = null;
         }
         return conn;
     }
 
     /**
-     * Realiza la desconexion de la base de datos
+     * <p>Ajusta los parametros de sqlite de una conexión nueva.</p>
+     * <p>Los valores se toman de la configuración de la aplicación
+     * (<code>db.journal.mode</code>, <code>db.synchronous</code>,
+     * <code>db.cache.pages</code>, <code>db.temp.store</code> y
+     * <code>db.mmap.size</code>). No todas las versiones de sqlite admiten
+     * todos los valores, así que se comprueba el valor final de cada
+     * parametro y se avisa si no es el pedido.</p>
+     * @param connection Conexión recién abierta
      * @throws SQLException
      */
-    public void disconnect() throws SQLException
+    private static void configure(final Connection connection) throws SQLException
     {
-        if (conn != null && !conn.isClosed())
+        Statement stat = connection.createStatement();
+        pragma(stat, "journal_mode", ConfigurationManager.getProperty("db.journal.mode"));
+        pragma(stat, "synchronous", ConfigurationManager.getProperty("db.synchronous"));
+        pragma(stat, "cache_size", ConfigurationManager.getProperty("db.cache.pages"));
+        pragma(stat, "temp_store", ConfigurationManager.getProperty("db.temp.store"));
+        pragma(stat, "mmap_size", ConfigurationManager.getProperty("db.mmap.size"));
+        stat.close();
+    }
+
+    /**
+     * Establece un parametro de sqlite y registra el valor con el que queda.
+     * @param stat Sentencia con la que se ejecutan los comandos
+     * @param name Nombre del parametro
+     * @param value Valor pedido, si esta vacio no se cambia el parametro
+     * @throws SQLException
+     */
+    private static void pragma(final Statement stat, final String name, final String value) throws SQLException
+    {
+        if (value == null || value.trim().length() == 0)
+            return;
+
+        ResultSet rs;
+        if (stat.execute("PRAGMA " + name + " = " + value.trim()))
+            stat.getResultSet().close();
+
+        String current = null;
+        try
         {
-            conn.close();
+            rs = stat.executeQuery("PRAGMA " + name);
+            if (rs.next())
+                current = rs.getString(1);
+            rs.close();
         }
+        catch (SQLException ex)
+        {
+            // Las versiones que no conocen el parametro no devuelven nada
+        }
+
+        if (current == null)
+            logger.log(Level.WARNING, "sqlite no admite el parametro {0}", name);
+        else if (!current.equalsIgnoreCase(value.trim()))
+            logger.log(Level.INFO, "Parametro de sqlite {0} = {1} (pedido {2})", new Object[]{name, current, value.trim()});
+        else
+            logger.log(Level.INFO, "Parametro de sqlite {0} = {1}", new Object[]{name, current});
+    }
+
+    /**
+     * Devuelve una consulta preparada sobre la conexión actual. Las
+     * consultas se guardan y se reutilizan mientras no se cierre la
+     * conexión, el que la usa no debe cerrarla pero si sus ResultSet.
+     * @param sql Consulta
+     * @return Consulta preparada
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private PreparedStatement prepare(final String sql) throws ClassNotFoundException, SQLException
+    {
+        conn = connect();
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null)
+        {
+            ps = conn.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        else
+        {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    /**
+     * Cierra las consultas preparadas guardadas.
+     */
+    private void closeStatements()
+    {
+        for (PreparedStatement ps : statements.values())
+        {
+            try
+            {
+                ps.close();
+            }
+            catch (SQLException ex)
+            {
+                logger.log(Level.WARNING, "No se ha podido cerrar una consulta: {0}", ex.getMessage());
+            }
+        }
+        statements.clear();
     }
 
-    @Override
-    public void finalize() throws Throwable
+    /**
+     * Realiza la desconexion de la base de datos
+     * @throws SQLException
+     */
+    public synchronized void disconnect() throws SQLException
     {
+        closeStatements();
+        settings = null;
         if (conn != null && !conn.isClosed())
         {
+            // Confirmo lo que haya escrito un VideoWriter
+            if (!conn.getAutoCommit())
+                commitWrite();
             conn.close();
         }
-        super.finalize();
+        conn = null;
     }
 
     /**
@@ -131,12 +314,13 @@ public class DbManager
      * @throws FileNotFoundException
      * @throws IOException
      */
-    public void createDb() throws ClassNotFoundException, SQLException, FileNotFoundException, IOException
+    public synchronized void createDb() throws ClassNotFoundException, SQLException, FileNotFoundException, IOException
     {
         conn = connect();
 
-        // Creo las tablas
+        // Creo las tablas, con el espacio libre recuperable poco a poco
         Statement stat = conn.createStatement();
+        stat.execute("PRAGMA auto_vacuum = INCREMENTAL");
         String[] ddlStatements = ConfigurationManager.getSQLInit();
         for(String currentStat : ddlStatements)
         {
@@ -145,302 +329,2033 @@ public class DbManager
         }
         stat.executeBatch();
         stat.close();
+
+        setProperty(DbProperty.SCHEMA_VERSION, String.valueOf(SCHEMA_VERSION));
     }
 
     /**
-     * Establece una propiedad de la aplicacion.
-     * Las propiedades se almacenan en la tabla configuration de la base de
-     * datos.
-     * @param property Nombre de la propiedad
-     * @param value Valor de la propiedad
+     * <p>Actualiza el esquema de una base de datos creada con una versión
+     * anterior de la aplicación.</p>
+     * <p>Cada actualización se hace en una transacción, de forma que si falla
+     * la base de datos se queda en la última versión completa.</p>
+     * <p>También se borran las imagenes de videos cuya escritura no llegó a
+     * terminar.</p>
      * @throws ClassNotFoundException
      * @throws SQLException
      */
-    public void setProperty(DbProperty property, String value) throws ClassNotFoundException, SQLException
+    public synchronized void upgradeDb() throws ClassNotFoundException, SQLException
     {
-        conn = connect();
-        PreparedStatement ps = conn.prepareStatement("INSERT INTO configuration (property, value) VALUES (?,?)");
-        ps.setString(1, property.toString());
-        ps.setString(2, value);
-        ps.execute();
-        ps.close();
-    }
+        int version = getSettings().getSchemaVersion();
+
+        if (version > SCHEMA_VERSION)
+            throw new SQLException("Version de la base de datos no soportada: " + version);
 
-    /**
-     * Obtiene el valor de una propiedad desde la base de datos
-     * @param property Nombre de la propiedad
-     * @return Valor de la propiedad
-     */
-    public String getProperty(DbProperty property) throws ClassNotFoundException, SQLException
-    {
-        String value = null;
         conn = connect();
-        PreparedStatement ps = conn.prepareStatement("SELECT value FROM configuration WHERE property = ?");
-        ps.setString(1, property.toString());
-        ResultSet rs = ps.executeQuery();
-        if (rs.next())
+        final boolean upgraded = version < SCHEMA_VERSION;
+        if (upgraded)
+        {
+            // Las consultas preparadas dejan de valer al cambiar las tablas
+            closeStatements();
+        }
+        while (version < SCHEMA_VERSION)
         {
-            value = rs.getString("value");
+            logger.log(Level.INFO, "Actualizando la base de datos a la version {0}", version + 1);
+            conn.setAutoCommit(false);
+            try
+            {
+                switch (version)
+                {
+                    case 1:
+                        upgradeToBands();
+                        break;
+                    case 2:
+                        upgradeToBinary();
+                        break;
+                    case 3:
+                        upgradeToStopList();
+                        break;
+                    case 4:
+                        upgradeToRuns();
+                        break;
+                    case 5:
+                        upgradeToVectors();
+                        break;
+                    case 6:
+                        upgradeToFrameRate();
+                        break;
+                    case 7:
+                        upgradeToHashCache();
+                        break;
+                    case 8:
+                        upgradeToQuickHashes();
+                        break;
+                }
+                version++;
+                setProperty(DbProperty.SCHEMA_VERSION, String.valueOf(version));
+                conn.commit();
+            }
+            catch (SQLException ex)
+            {
+                conn.rollback();
+                settings = null;
+                throw ex;
+            }
+            finally
+            {
+                conn.setAutoCommit(true);
+            }
         }
+
+        // Borro las imagenes de videos que no se terminaron de escribir
+        Statement stat = conn.createStatement();
+        final int orphans = stat.executeUpdate("DELETE FROM images" +
+                                               " WHERE video_id NOT IN (SELECT video_id FROM videos)");
+        stat.close();
+        if (orphans > 0)
+            logger.log(Level.INFO, "Borradas {0} imagenes de videos incompletos", orphans);
+
+        // Al copiar las tablas queda mucho espacio libre en el fichero. Las
+        // bases de datos anteriores tampoco permiten recuperar el espacio
+        // libre poco a poco, cambiarlo obliga a reconstruir el fichero.
+        stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("PRAGMA auto_vacuum");
+        final boolean incremental = rs.next() && rs.getInt(1) == AUTO_VACUUM_INCREMENTAL;
         rs.close();
-        if (value == null)
+        if (upgraded || !incremental)
         {
-            throw new SQLException("Propiedad no encontrada: " + property);
+            logger.log(Level.INFO, "Reconstruyendo el fichero de la base de datos");
+            stat.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            stat.execute("VACUUM");
+
+            // La versión de sqlite que usamos deja el modo completo al
+            // reconstruir, pero ya permite pasar al incremental
+            stat.execute("PRAGMA auto_vacuum = INCREMENTAL");
         }
-        return value;
+        stat.close();
     }
 
     /**
-     * Añade un video a la base de datos
-     * @param video Video que se va a añadir
+     * Versión 2: añade las bandas de la huella a la tabla de imagenes y las
+     * calcula para las imagenes existentes.
      * @throws ClassNotFoundException
      * @throws SQLException
      */
-    public void addVideo(Video video) throws ClassNotFoundException, SQLException
+    private void upgradeToBands() throws ClassNotFoundException, SQLException
     {
-        // Para que sean mas rapidos los inserts se hacen en bloques de 500
-        final int maxInserts = 499;
-
-        conn = connect();
+        final int bits = getSettings().getFingerprintBits();
+        final MultiIndexHash mih = new MultiIndexHash(bits);
 
-        // Añado la instruccion para insertar el video
         Statement stat = conn.createStatement();
-        stat.addBatch("INSERT INTO videos (video_hash, video_name, video_path)" +
-                     " VALUES ('" + video.getHash() + "','" + video.getName() + "','" + video.getFile().getAbsolutePath() + "')");
+        for (int i = 0; i < MultiIndexHash.BANDS; i++)
+        {
+            stat.execute("ALTER TABLE images ADD COLUMN image_band" + i + " integer");
+        }
 
-        // Añado las instrucciones para insertar las imagenes
-        int i = 0;
-        StringBuffer currentInsert = new StringBuffer("INSERT INTO images (video_hash, image_number, image_haar, image_path) ");
-        List<DatabaseImage> frames = video.getImages();
-        for(DatabaseImage img : frames)
+        // Recorro las imagenes por bloques para no leer y escribir a la vez
+        PreparedStatement select = conn.prepareStatement("   SELECT rowid, image_haar" +
+                                                         "     FROM images" +
+                                                         "    WHERE rowid > ?" +
+                                                         " ORDER BY rowid" +
+                                                         "    LIMIT 10000");
+        PreparedStatement update = conn.prepareStatement("UPDATE images" +
+                                                         "   SET image_band0 = ?, image_band1 = ?, image_band2 = ?, image_band3 = ?" +
+                                                         " WHERE rowid = ?");
+        long last = 0;
+        long count = 0;
+        boolean more = true;
+        while (more)
         {
-            currentInsert.append(" SELECT '");
-            currentInsert.append(video.getHash());
-            currentInsert.append("', ");
-            currentInsert.append(img.getFrameNumber());
-            currentInsert.append(", '");
-            currentInsert.append(img.getWaveletValue());
-            currentInsert.append("', '");
-            currentInsert.append(img.getFile().getPath());
-            currentInsert.append("' union all ");
-            if (i == maxInserts)
+            List<long[]> rows = new ArrayList<long[]>();
+            select.setLong(1, last);
+            ResultSet rs = select.executeQuery();
+            while (rs.next())
             {
-                stat.addBatch(currentInsert.toString().replaceAll(" union all $", ""));
-                currentInsert = new StringBuffer("INSERT INTO images (video_hash, image_number, image_haar, image_path) ");
-                i = 0;
+                final long rowid = rs.getLong(1);
+                final long[] keys = mih.keys(fromDecimal(rs.getString(2), bits));
+                rows.add(new long[] {rowid, keys[0], keys[1], keys[2], keys[3]});
+                last = rowid;
             }
-            else
+            rs.close();
+
+            for (long[] row : rows)
             {
-                i++;
+                for (int i = 0; i < MultiIndexHash.BANDS; i++)
+                {
+                    update.setLong(i + 1, row[i + 1]);
+                }
+                update.setLong(MultiIndexHash.BANDS + 1, row[0]);
+                update.addBatch();
             }
+            update.executeBatch();
+            count += rows.size();
+            more = !rows.isEmpty();
         }
-        if (i > 0)
+        select.close();
+        update.close();
+
+        for (int i = 0; i < MultiIndexHash.BANDS; i++)
         {
-            stat.addBatch(currentInsert.toString().replaceAll(" union all $", ""));
+            stat.execute("CREATE INDEX IF NOT EXISTS IX_Images_Band" + i + " on images (image_band" + i + ")");
         }
-
-        // Ejecuto los inserts
-        stat.executeBatch();
         stat.close();
+        logger.log(Level.INFO, "Calculadas las bandas de {0} imagenes", count);
     }
 
     /**
-     * Elimina un video de la base de datos
-     * @param video Video que se va a eliminar
+     * <p>Versión 3: los videos pasan a tener un identificador numérico, que es
+     * lo que se guarda en cada imagen en lugar del hash, la huella se guarda
+     * en binario y desaparece la ruta de las imagenes.</p>
+     * <p>Como sqlite no permite cambiar ni borrar columnas, se crean tablas
+     * nuevas, se copian los datos y se sustituyen las antiguas.</p>
      * @throws ClassNotFoundException
      * @throws SQLException
      */
-    public void removeVideo(Video video) throws ClassNotFoundException, SQLException
+    private void upgradeToBinary() throws ClassNotFoundException, SQLException
     {
-        conn = connect();
+        final int bits = getSettings().getFingerprintBits();
 
-        // Borro las imagenes
-        PreparedStatement ps = conn.prepareStatement("DELETE FROM images" +
-                                                     " WHERE video_hash = ?");
-        ps.setString(1, video.getHash());
-        ps.execute();
-        ps.close();
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE videos_v3" +
+                     "(" +
+                     "    video_id integer PRIMARY KEY," +
+                     "    video_hash varchar(1000) UNIQUE," +
+                     "    video_name varchar(1000)," +
+                     "    video_path varchar(1000)" +
+                     ")");
+        stat.execute("INSERT INTO videos_v3 (video_hash, video_name, video_path)" +
+                     "     SELECT video_hash, video_name, video_path" +
+                     "       FROM videos");
+        stat.execute("CREATE TABLE images_v3" +
+                     "(" +
+                     "    image_haar blob," +
+                     "    image_number integer," +
+                     "    video_id integer REFERENCES videos(video_id)," +
+                     "    image_band0 integer," +
+                     "    image_band1 integer," +
+                     "    image_band2 integer," +
+                     "    image_band3 integer" +
+                     ")");
 
-        // Borro el video
-        ps = conn.prepareStatement("DELETE FROM videos" +
-                                   " WHERE video_hash = ?");
-        ps.setString(1, video.getHash());
-        ps.execute();
-        ps.close();
+        // La huella hay que convertirla, asi que copio las imagenes por bloques
+        PreparedStatement select = conn.prepareStatement("   SELECT i.rowid, image_haar, image_number, video_id" +
+                                                         "        , image_band0, image_band1, image_band2, image_band3" +
+                                                         "     FROM images i" +
+                                                         "     join videos_v3 v on v.video_hash = i.video_hash" +
+                                                         "    WHERE i.rowid > ?" +
+                                                         " ORDER BY i.rowid" +
+                                                         "    LIMIT 10000");
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO images_v3 (image_haar, image_number, video_id" +
+                                                         ", image_band0, image_band1, image_band2, image_band3)" +
+                                                         " VALUES (?,?,?,?,?,?,?)");
+        long last = 0;
+        long count = 0;
+        boolean more = true;
+        while (more)
+        {
+            more = false;
+            select.setLong(1, last);
+            ResultSet rs = select.executeQuery();
+            while (rs.next())
+            {
+                more = true;
+                last = rs.getLong(1);
+                insert.setBytes(1, toDbValue(fromDecimal(rs.getString(2), bits)));
+                insert.setInt(2, rs.getInt(3));
+                insert.setLong(3, rs.getLong(4));
+                for (int i = 0; i < MultiIndexHash.BANDS; i++)
+                {
+                    insert.setLong(4 + i, rs.getLong(5 + i));
+                }
+                insert.addBatch();
+                count++;
+            }
+            rs.close();
+            insert.executeBatch();
+        }
+        select.close();
+        insert.close();
+
+        stat.execute("DROP TABLE images");
+        stat.execute("DROP TABLE videos");
+        stat.execute("ALTER TABLE videos_v3 RENAME TO videos");
+        stat.execute("ALTER TABLE images_v3 RENAME TO images");
+        createImageIndexes(stat);
+        stat.close();
+        logger.log(Level.INFO, "Convertidas {0} imagenes", count);
     }
 
     /**
-     * Comprueba si existe un video en la base de datos
-     * @param video
-     * @return Verdadero si el video existe en la bdd, falso si no existe
+     * Versión 4: añade la tabla de huellas frecuentes y la calcula.
+     * @throws ClassNotFoundException
      * @throws SQLException
+     */
+    private void upgradeToStopList() throws ClassNotFoundException, SQLException
+    {
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE IF NOT EXISTS stoplist" +
+                     "(" +
+                     "    image_haar blob PRIMARY KEY," +
+                     "    video_count integer," +
+                     "    image_count integer" +
+                     ")");
+        stat.close();
+        fillStopList();
+    }
+
+    /**
+     * <p>Versión 5: las imagenes se agrupan en tramos de frames consecutivos
+     * con la misma huella.</p>
+     * <p>Se crea una tabla nueva y se rellena recorriendo las imagenes de
+     * cada video en orden. Las huellas frecuentes se vuelven a calcular
+     * porque ahora cuentan tramos.</p>
      * @throws ClassNotFoundException
+     * @throws SQLException
      */
-    public boolean existsVideo(Video video) throws SQLException, ClassNotFoundException
+    private void upgradeToRuns() throws ClassNotFoundException, SQLException
     {
-        boolean existe = false;
+        final int bits = getSettings().getFingerprintBits();
+        final MultiIndexHash mih = new MultiIndexHash(bits);
+        final int maxLength = getMaxRunLength();
 
-        conn = connect();
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE images_v5" +
+                     "(" +
+                     "    image_haar blob," +
+                     "    image_number integer," +
+                     "    image_start integer," +
+                     "    image_end integer," +
+                     "    video_id integer REFERENCES videos(video_id)," +
+                     "    image_band0 integer," +
+                     "    image_band1 integer," +
+                     "    image_band2 integer," +
+                     "    image_band3 integer" +
+                     ")");
 
-        PreparedStatement ps = conn.prepareStatement("SELECT video_hash" +
-                                                     "  FROM videos" +
-                                                     " WHERE video_hash = ?");
-        ps.setString(1, video.getHash());
-        ResultSet rs = ps.executeQuery();
+        final List<Integer> videoIds = new ArrayList<Integer>();
+        ResultSet rs = stat.executeQuery("SELECT video_id FROM videos");
         while (rs.next())
         {
-            existe = rs.getBoolean(1);
+            videoIds.add(rs.getInt(1));
         }
-        return existe;
+        rs.close();
+
+        PreparedStatement select = conn.prepareStatement("   SELECT image_haar, image_number" +
+                                                         "     FROM images" +
+                                                         "    WHERE video_id = ?" +
+                                                         " ORDER BY image_number");
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO images_v5 (video_id, image_number, image_start, image_end, image_haar" +
+                                                         ", image_band0, image_band1, image_band2, image_band3)" +
+                                                         " VALUES (?,?,?,?,?,?,?,?,?)");
+        long images = 0;
+        long count = 0;
+        for (int videoId : videoIds)
+        {
+            // Agrupo las imagenes del video en tramos
+            final List<FrameRun> runs = new ArrayList<FrameRun>();
+            FrameRun current = null;
+            select.setInt(1, videoId);
+            rs = select.executeQuery();
+            while (rs.next())
+            {
+                final Fingerprint fingerprint = fromDbValue(rs.getBytes(1), bits);
+                final int frame = rs.getInt(2);
+                if (current == null || !current.append(fingerprint, frame, maxLength))
+                {
+                    current = new FrameRun(fingerprint, frame);
+                    runs.add(current);
+                }
+                images++;
+            }
+            rs.close();
+
+            for (FrameRun run : runs)
+            {
+                bindRun(insert, mih, videoId, run);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            count += runs.size();
+        }
+        select.close();
+        insert.close();
+
+        stat.execute("DROP TABLE images");
+        stat.execute("ALTER TABLE images_v5 RENAME TO images");
+        createImageIndexes(stat);
+        stat.close();
+        fillStopList();
+        logger.log(Level.INFO, "Agrupadas {0} imagenes en {1} tramos", new Object[]{images, count});
     }
 
     /**
-     * Busca una imagen en la base de datos.
-     * Se devolveran aquellas imagenes que tengan un mismo valor para la
-     * transformada wavelet aplicada.
-     * @param img Imagen a buscar en la base de datos
-     * @return Lista de videos que contienen las imagenes encontradas.
+     * <p>Versión 6: añade a la tabla de imagenes el vector de baja resolución
+     * de cada tramo, con el que se refinan las busquedas (ver
+     * <code>PixelVector</code>), y el número de frame al índice por video
+     * para poder leer los vectores de los resultados.</p>
+     * <p>Los tramos existentes se quedan sin vector y se siguen refinando
+     * con sus frames.</p>
+     * @throws ClassNotFoundException
      * @throws SQLException
+     */
+    private void upgradeToVectors() throws ClassNotFoundException, SQLException
+    {
+        Statement stat = conn.createStatement();
+        stat.execute("ALTER TABLE images ADD COLUMN image_vector blob");
+        stat.execute("DROP INDEX IF EXISTS IX_Images_Video");
+        createImageIndexes(stat);
+        stat.close();
+    }
+
+    /**
+     * <p>Versión 7: añade a la tabla de videos sus frames por segundo, con
+     * los que se obtienen del video los frames que no se han guardado (ver
+     * <code>FrameExtractor</code>).</p>
+     * <p>Los videos existentes se quedan sin ellos, pero tienen sus frames
+     * guardados.</p>
      * @throws ClassNotFoundException
+     * @throws SQLException
      */
-    public List<Video> searchImage(SearchedImage img) throws SQLException, ClassNotFoundException
+    private void upgradeToFrameRate() throws ClassNotFoundException, SQLException
     {
-        int IMAGE_INTERVAL;
-        try
-        {
-            IMAGE_INTERVAL = Integer.parseInt(ConfigurationManager.getProperty("image.consecutive"));
-        }
-        catch(Exception ex)
-        {
-            IMAGE_INTERVAL = 25;
-        }
-        List<Video> resultList = new ArrayList<Video> ();
-        long count_wavelet = 0;
-        long count_images = 0;
+        Statement stat = conn.createStatement();
+        stat.execute("ALTER TABLE videos ADD COLUMN video_fps real");
+        stat.close();
+    }
 
-        conn = connect();
-        PreparedStatement ps = conn.prepareStatement("   SELECT v.video_hash" +
-                                                     "        , video_name" +
-                                                     "        , video_path" +
-                                                     "        , image_number" +
-                                                     "        , image_path " +
-                                                     "     FROM images i" +
-                                                     "     join videos v on v.video_hash = i.video_hash" +
-                                                     "    WHERE image_haar = ?" +
-                                                     " ORDER BY v.video_hash" +
-                                                     "        , image_number");
-        ps.setString(1, img.getWaveletValue().toString());
-        ResultSet rs = ps.executeQuery();
-        String previous_hash = null, current_hash = null;
-        int last_frame_added = -1, current_frame = -1;
-        int consecutive_count = 0;
+    /**
+     * <p>Versión 8: añade la tabla con el hash de los ficheros ya leidos,
+     * para no volver a calcularlo mientras el fichero no cambie.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private void upgradeToHashCache() throws ClassNotFoundException, SQLException
+    {
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE IF NOT EXISTS hash_cache" +
+                     "(" +
+                     "    hash_path varchar(1000) PRIMARY KEY," +
+                     "    hash_size integer," +
+                     "    hash_mtime integer," +
+                     "    hash_quick varchar(40)," +
+                     "    hash_value varchar(1000)" +
+                     ")");
+        stat.execute("CREATE INDEX IF NOT EXISTS IX_HashCache_Quick on hash_cache (hash_quick)");
+        stat.close();
+    }
 
-        Video video = null;
+    /**
+     * <p>Versión 9: guarda el hash rápido de los videos que no lo tienen,
+     * los añadidos antes de la versión 8, para reconocer sus copias aunque
+     * se identifiquen con otro <code>hash.mode</code>.</p>
+     * <p>No se sabe si el fichero ha cambiado desde que se añadió, así que
+     * su tamaño y fecha se guardan como -1: la entrada solo sirve para
+     * buscar por hash rápido, que siempre se confirma con el hash completo.
+     * Los videos cuyo fichero ya no existe se quedan sin hash rápido.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private void upgradeToQuickHashes() throws ClassNotFoundException, SQLException
+    {
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("SELECT video_hash, video_path" +
+                                         "  FROM videos v" +
+                                         " WHERE NOT EXISTS (SELECT 1 FROM hash_cache c WHERE c.hash_value = v.video_hash)");
+        PreparedStatement ps = conn.prepareStatement("INSERT OR IGNORE INTO hash_cache (hash_path, hash_size, hash_mtime, hash_quick, hash_value)" +
+                                                     " VALUES (?,-1,-1,?,?)");
+        int count = 0;
         while (rs.next())
         {
-            count_wavelet++;
-            current_hash  = rs.getString("video_hash");
-            current_frame = rs.getInt("image_number");
-
-            if (!current_hash.equals(previous_hash))
+            final File file = new File(rs.getString("video_path"));
+            if (!file.isFile())
+                continue;
+            final String quickHash;
+            try
             {
-                // Cambio de video
-                if (video != null)
-                {
-                    resultList.add(video);
-                }
-                video = new Video(rs.getString("video_name"), new File(rs.getString("video_path")), current_hash);
-                previous_hash  = current_hash;
-                
-                final File file = new File(rs.getString("image_path"));
-                final DatabaseImage image = new DatabaseImage(file
-                                                            , current_frame
-                                                            , null);
-                video.addImage(image);
-                count_images++;
-                
-                last_frame_added = current_frame;
-                consecutive_count = 1;
-            }
-            else
-            {
-                // Mismo video
-                if (current_frame != last_frame_added + consecutive_count || consecutive_count > IMAGE_INTERVAL)
-                {
-                    final File file = new File(rs.getString("image_path"));
-                    final DatabaseImage image = new DatabaseImage(file
-                                                                , current_frame
-                                                                , null);
-                    video.addImage(image);
-                    count_images++;
-
-                    last_frame_added = current_frame;
-                    consecutive_count = 1;
-                }
-                else
-                {
-                    consecutive_count++;
-                }
+                quickHash = Hash.getQuickHash(file);
             }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING, "No se puede calcular el hash rápido de {0}: {1}", new Object[]{file, ex.getMessage()});
+                continue;
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new SQLException(ex.getMessage());
+            }
+            ps.setString(1, file.getAbsolutePath());
+            ps.setString(2, quickHash);
+            ps.setString(3, rs.getString("video_hash"));
+            ps.executeUpdate();
+            count++;
         }
-        if (video != null)
-        {
-            resultList.add(video);
-        }
-        logger.log(Level.INFO, "Se han encontrado {0} imagenes con la misma wavelet.", count_wavelet);
-        logger.log(Level.INFO, "Se procesaran {0} imagenes.", count_images);
-        return resultList;
+        rs.close();
+        ps.close();
+        stat.close();
+        logger.log(Level.INFO, "Calculado el hash rápido de {0} videos", count);
     }
 
     /**
-     * Devuelve la lista de videos existentes
-     * @return Lista de videos
-     * @throws ClassNotFoundException
+     * Asigna los parametros de una inserción en la tabla de imagenes.
+     * @param ps Sentencia con los parametros (video_id, image_number,
+     * image_start, image_end, image_haar, image_band0..image_band3)
+     * @param mih Bandas de la huella
+     * @param videoId Identificador del video
+     * @param run Tramo a insertar
      * @throws SQLException
      */
-    public List<Video> getVideoList() throws ClassNotFoundException, SQLException
+    private static void bindRun(final PreparedStatement ps
+                              , final MultiIndexHash mih
+                              , final int videoId
+                              , final FrameRun run) throws SQLException
     {
-        List videoList = new ArrayList();
-        conn = connect();
-
-        PreparedStatement ps = conn.prepareStatement("   SELECT video_hash" +
-                                                     "        , video_name" +
-                                                     "        , video_path" +
-                                                     "        , value || '/' || video_hash as frames_path" +
-                                                     "     FROM videos" +
-                                                     "     cross join configuration" +
-                                                     "    WHERE property = ?" +
-                                                     " ORDER BY video_name");
-        ps.setString(1, DbProperty.FRAMES_PATH.toString());
-        ResultSet rs = ps.executeQuery();
-        while (rs.next())
+        final long[] keys = mih.keys(run.getFingerprint());
+        ps.setInt(1, videoId);
+        ps.setInt(2, run.getFrameNumber());
+        ps.setInt(3, run.getFirst());
+        ps.setInt(4, run.getLast());
+        ps.setBytes(5, toDbValue(run.getFingerprint()));
+        for (int i = 0; i < keys.length; i++)
         {
-            videoList.add(new Video(rs.getString("video_name")
-                                  , new File(rs.getString("video_path"))
-                                  , rs.getString("video_hash")
-                                  , new File(rs.getString("frames_path"))
-                         )
-            );
+            ps.setLong(6 + i, keys[i]);
         }
-        return videoList;
     }
 
     /**
-     * Devuelve la cadena de conexión usada
-     * @return Cadena de conexión
+     * Devuelve el número máximo de frames de un tramo, los frames que se
+     * agrupan como un único resultado en las busquedas.
+     * @return Valor de <code>image.consecutive</code> más 1
      */
-    public String getConnectionString()
+    static int getMaxRunLength()
     {
-        return connectionString;
+        return Math.max(0, ConfigurationManager.getIntProperty("image.consecutive", 25)) + 1;
     }
 
     /**
-     * Estable la cadena de conexion
-     * @param connectionString Cadena de conexion
+     * Crea los indices de la tabla de imagenes.
+     * @param stat Sentencia con la que se ejecutan los comandos
+     * @throws SQLException
      */
-    public void setConnectionString(String connectionString)
+    private static void createImageIndexes(final Statement stat) throws SQLException
     {
+        stat.execute("CREATE INDEX IF NOT EXISTS IX_Images_Haar on images (image_haar, video_id, image_number)");
+        stat.execute("CREATE INDEX IF NOT EXISTS IX_Images_Video on images (video_id, image_number)");
+        for (int i = 0; i < MultiIndexHash.BANDS; i++)
+        {
+            stat.execute("CREATE INDEX IF NOT EXISTS IX_Images_Band" + i + " on images (image_band" + i + ")");
+        }
+    }
+
+    /**
+     * Establece una propiedad de la aplicacion.
+     * Las propiedades se almacenan en la tabla configuration de la base de
+     * datos.
+     * @param property Nombre de la propiedad
+     * @param value Valor de la propiedad
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public synchronized void setProperty(DbProperty property, String value) throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("DELETE FROM configuration WHERE property = ?");
+        ps.setString(1, property.toString());
+        ps.execute();
+
+        ps = prepare("INSERT INTO configuration (property, value) VALUES (?,?)");
+        ps.setString(1, property.toString());
+        ps.setString(2, value);
+        ps.execute();
+        settings = null;
+    }
+
+    /**
+     * Obtiene el valor de una propiedad desde la base de datos
+     * @param property Nombre de la propiedad
+     * @return Valor de la propiedad
+     * @see #getSettings()
+     */
+    public String getProperty(DbProperty property) throws ClassNotFoundException, SQLException
+    {
+        final String value = getSettings().get(property);
+        if (value == null)
+        {
+            throw new SQLException("Propiedad no encontrada: " + property);
+        }
+        return value;
+    }
+
+    /**
+     * <p>Devuelve la configuración de la base de datos.</p>
+     * <p>La tabla de configuración se lee entera la primera vez y se guarda
+     * hasta que se modifica alguna propiedad o se abre otra conexión, así que
+     * normalmente no hace falta acceder a la base de datos.</p>
+     * @return Configuración de la base de datos
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public DbSettings getSettings() throws ClassNotFoundException, SQLException
+    {
+        DbSettings current = settings;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = settings;
+                if (current == null)
+                {
+                    current = loadSettings();
+                    settings = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Lee la tabla de configuración.
+     * @return Configuración de la base de datos
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private DbSettings loadSettings() throws ClassNotFoundException, SQLException
+    {
+        final Map<DbProperty, String> values = new HashMap<DbProperty, String>();
+        PreparedStatement ps = prepare("SELECT property, value FROM configuration");
+        ResultSet rs = ps.executeQuery();
+        while (rs.next())
+        {
+            try
+            {
+                values.put(DbProperty.valueOf(rs.getString(1)), rs.getString(2));
+            }
+            catch (IllegalArgumentException ex)
+            {
+                logger.log(Level.WARNING, "Propiedad desconocida en la base de datos: {0}", rs.getString(1));
+            }
+        }
+        rs.close();
+        return new DbSettings(values);
+    }
+
+    /**
+     * Crea un objeto para ir añadiendo a la base de datos las imagenes de un
+     * video a medida que se procesan.
+     * @param video Video que se va a añadir
+     * @return Escritor del video
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public VideoWriter createVideoWriter(Video video) throws ClassNotFoundException, SQLException
+    {
+        return new VideoWriter(this, video, reserveVideoId());
+    }
+
+    /**
+     * <p>Reserva el identificador numérico de un video nuevo.</p>
+     * <p>El video se inserta después de sus imagenes, así que el
+     * identificador no lo puede asignar sqlite al insertar. Se parte del
+     * mayor identificador usado, tanto en videos como en imagenes, y se
+     * lleva la cuenta en memoria.</p>
+     * @return Identificador del video
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private synchronized int reserveVideoId() throws ClassNotFoundException, SQLException
+    {
+        if (nextVideoId < 0)
+        {
+            conn = connect();
+            Statement stat = conn.createStatement();
+            ResultSet rs = stat.executeQuery("SELECT max(id) FROM (SELECT max(video_id) as id FROM videos" +
+                                             "                     union all" +
+                                             "                     SELECT max(video_id) FROM images)");
+            nextVideoId = (rs.next() ? rs.getInt(1) : 0) + 1;
+            rs.close();
+            stat.close();
+        }
+        return nextVideoId++;
+    }
+
+    /**
+     * Inserta un bloque de tramos de un video dentro de la transacción de
+     * escritura, que se abre si no lo estaba.
+     * @param videoId Identificador del video al que pertenecen los tramos
+     * @param runs Tramos a insertar
+     * @param commit Verdadero para confirmar la transacción al terminar
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    synchronized void writeImages(final int videoId, final List<FrameRun> runs, final boolean commit) throws ClassNotFoundException, SQLException
+    {
+        conn = connect();
+        conn.setAutoCommit(false);
+
+        if (!runs.isEmpty())
+        {
+            final MultiIndexHash mih = new MultiIndexHash(runs.get(0).getFingerprint().getBits());
+            PreparedStatement ps = prepare("INSERT INTO images (video_id, image_number, image_start, image_end, image_haar" +
+                                           ", image_band0, image_band1, image_band2, image_band3, image_vector)" +
+                                           " VALUES (?,?,?,?,?,?,?,?,?,?)");
+            for (FrameRun run : runs)
+            {
+                bindRun(ps, mih, videoId, run);
+                if (run.getVector() != null)
+                    ps.setBytes(10, run.getVector());
+                else
+                    ps.setNull(10, Types.BLOB);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        if (commit)
+            commitWrite();
+    }
+
+    /**
+     * Inserta los últimos tramos y el video, confirma la transacción y
+     * actualiza el índice en memoria.
+     * @param videoId Identificador reservado para el video
+     * @param video Video que se va a añadir
+     * @param pending Tramos pendientes de insertar
+     * @param runs Todos los tramos del video
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    synchronized void writeVideo(final int videoId
+                               , final Video video
+                               , final List<FrameRun> pending
+                               , final List<FrameRun> runs) throws ClassNotFoundException, SQLException
+    {
+        writeImages(videoId, pending, false);
+
+        // El filtro tiene que tener las huellas antes de que el video sea
+        // visible, y el fichero del filtro deja de estar al día
+        addToFilter(runs);
+
+        PreparedStatement ps = prepare("INSERT INTO videos (video_id, video_hash, video_name, video_path, video_fps)" +
+                                       " VALUES (?,?,?,?,?)");
+        ps.setInt(1, videoId);
+        ps.setString(2, video.getHash());
+        ps.setString(3, video.getName());
+        ps.setString(4, video.getFile().getAbsolutePath());
+        if (video.getFrameRate() > 0)
+            ps.setDouble(5, video.getFrameRate());
+        else
+            ps.setNull(5, Types.REAL);
+        ps.execute();
+        commitWrite();
+
+        // Actualizo el índice en memoria
+        final FingerprintIndex current = index;
+        if (current != null)
+        {
+            if (!current.isReady())
+            {
+                addedWhileLoading.add(video.getHash());
+            }
+            current.addAll(video.getHash()
+                         , video.getName()
+                         , video.getFile().getAbsolutePath()
+                         , runs);
+        }
+    }
+
+    /**
+     * Borra las imagenes de un video cuya escritura se ha abandonado.
+     * @param videoId Identificador reservado para el video
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    synchronized void discardImages(final int videoId) throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("DELETE FROM images" +
+                                       " WHERE video_id = ?");
+        ps.setInt(1, videoId);
+        ps.execute();
+        if (!conn.getAutoCommit())
+            commitWrite();
+    }
+
+    /**
+     * Confirma la transacción de escritura y vuelve al modo autocommit.
+     * @throws SQLException
+     */
+    private void commitWrite() throws SQLException
+    {
+        conn.commit();
+        conn.setAutoCommit(true);
+        notifyAll();
+    }
+
+    /**
+     * <p>Espera a que no haya ninguna transacción de escritura abierta.</p>
+     * <p>La ingesta va escribiendo las imagenes en una transacción que
+     * comparte la conexión y que solo se confirma cada cierto número de
+     * tramos o al terminar un video. Otra operación que confirmase o
+     * deshiciese su propia transacción sobre la misma conexión se llevaría
+     * por delante las imagenes de un video a medio escribir. Mientras se
+     * espera se libera el monitor, así que la ingesta puede seguir hasta
+     * confirmar su transacción.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException Si se interrumpe la espera
+     */
+    private void awaitWriteIdle() throws ClassNotFoundException, SQLException
+    {
+        conn = connect();
+        boolean logged = false;
+        while (!conn.getAutoCommit())
+        {
+            if (!logged)
+            {
+                logger.log(Level.INFO, "Hay una escritura en curso, se espera a que termine");
+                logged = true;
+            }
+            try
+            {
+                // Las transacciones que se deshacen no avisan, por eso no se espera indefinidamente
+                wait(1000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Se ha interrumpido la espera a la escritura en curso");
+            }
+            conn = connect();
+        }
+    }
+
+    /**
+     * Elimina un video de la base de datos
+     * @param video Video que se va a eliminar
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @see #removeVideos(List)
+     */
+    public void removeVideo(Video video) throws ClassNotFoundException, SQLException
+    {
+        removeVideos(Collections.singletonList(video));
+    }
+
+    /**
+     * <p>Elimina varios videos de la base de datos en una sola transacción.</p>
+     * <p>Los tramos se borran por el identificador del video, que tiene
+     * índice. Los directorios y almacenes de frames se mueven a la papelera y
+     * se borran en segundo plano (ver <code>FrameTrash</code>). El espacio que queda
+     * libre en el fichero de la base de datos se recupera con
+     * <code>reclaimSpace()</code>.</p>
+     * <p>Si hay una ingesta escribiendo, espera a que confirme su
+     * transacción.</p>
+     * @param videos Videos que se van a eliminar
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void removeVideos(List<Video> videos) throws ClassNotFoundException, SQLException
+    {
+        final long start = System.currentTimeMillis();
+        final List<String> hashes = new ArrayList<String>(videos.size());
+        for (Video video : videos)
+        {
+            hashes.add(video.getHash());
+        }
+
+        final File framesPath;
+        synchronized (this)
+        {
+            framesPath = getSettings().getFramesPath();
+            awaitWriteIdle();
+            conn.setAutoCommit(false);
+            try
+            {
+                PreparedStatement images = prepare("DELETE FROM images" +
+                                                   " WHERE video_id = (SELECT video_id" +
+                                                   "                     FROM videos" +
+                                                   "                    WHERE video_hash = ?)");
+                PreparedStatement rows = prepare("DELETE FROM videos" +
+                                                 " WHERE video_hash = ?");
+                for (String hash : hashes)
+                {
+                    images.setString(1, hash);
+                    images.addBatch();
+                    rows.setString(1, hash);
+                    rows.addBatch();
+                }
+                images.executeBatch();
+                rows.executeBatch();
+                commitWrite();
+            }
+            catch (SQLException ex)
+            {
+                conn.rollback();
+                conn.setAutoCommit(true);
+                throw ex;
+            }
+
+            final FingerprintIndex current = index;
+            if (current != null)
+            {
+                current.removeAll(hashes);
+            }
+        }
+
+        // Los frames ya no se pueden encontrar, los quito de en medio
+        final FrameTrash trash = new FrameTrash(framesPath);
+        for (String hash : hashes)
+        {
+            trash.discard(new File(framesPath, hash));
+            trash.discard(FrameStore.getFile(framesPath, hash));
+        }
+        logger.log(Level.INFO, "Eliminados {0} videos en {1} ms", new Object[]{hashes.size(), System.currentTimeMillis() - start});
+    }
+
+    /**
+     * <p>Recupera el espacio libre que dejan en el fichero de la base de datos
+     * los videos eliminados, y termina de vaciar la papelera de frames.</p>
+     * <p>Las páginas libres se devuelven al sistema con
+     * <code>incremental_vacuum</code> en bloques de
+     * <code>db.vacuum.pages</code>, soltando la conexión entre bloque y bloque
+     * para no bloquear las busquedas. Si hay una escritura en curso se deja
+     * para la próxima vez.</p>
+     * <p>Se debe llamar desde un thread distinto al de la interfaz.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void reclaimSpace() throws ClassNotFoundException, SQLException
+    {
+        final long start = System.currentTimeMillis();
+        final int chunk = Math.max(1, ConfigurationManager.getIntProperty("db.vacuum.pages", 1024));
+        synchronized (this)
+        {
+            new FrameTrash(getSettings().getFramesPath()).empty();
+        }
+
+        long freed = 0;
+        while (true)
+        {
+            synchronized (this)
+            {
+                conn = connect();
+                if (!conn.getAutoCommit())
+                {
+                    logger.log(Level.INFO, "Hay una escritura en curso, no se recupera el espacio libre");
+                    break;
+                }
+
+                Statement stat = conn.createStatement();
+                ResultSet rs = stat.executeQuery("PRAGMA freelist_count");
+                final long free = rs.next() ? rs.getLong(1) : 0;
+                rs.close();
+                stat.close();
+                if (free == 0)
+                    break;
+
+                // sqlite libera una página cada vez que se ejecuta la sentencia
+                final int pages = (int)Math.min(free, chunk);
+                conn.setAutoCommit(false);
+                try
+                {
+                    PreparedStatement ps = conn.prepareStatement("PRAGMA incremental_vacuum(1)");
+                    for (int i = 0; i < pages; i++)
+                    {
+                        ps.execute();
+                    }
+                    ps.close();
+                    commitWrite();
+                }
+                catch (SQLException ex)
+                {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                    throw ex;
+                }
+                freed += pages;
+            }
+            Thread.yield();
+        }
+        if (freed > 0)
+            logger.log(Level.INFO, "Recuperadas {0} paginas libres en {1} ms", new Object[]{freed, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Comprueba si existe un video en la base de datos
+     * @param video
+     * @return Verdadero si el video existe en la bdd, falso si no existe
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     */
+    public synchronized boolean existsVideo(Video video) throws SQLException, ClassNotFoundException
+    {
+        PreparedStatement ps = prepare("SELECT video_hash" +
+                                       "  FROM videos" +
+                                       " WHERE video_hash = ?");
+        ps.setString(1, video.getHash());
+        ResultSet rs = ps.executeQuery();
+        final boolean existe = rs.next();
+        rs.close();
+        return existe;
+    }
+
+    /**
+     * Devuelve el hash guardado de un fichero, si el fichero no ha cambiado
+     * desde que se calculó.
+     * @param file Fichero
+     * @return Hash del fichero, o nulo si no se conoce o el fichero ha
+     * cambiado de tamaño o de fecha de modificación
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @see #cacheHash(File, String, String)
+     */
+    public synchronized String getCachedHash(final File file) throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("SELECT hash_value" +
+                                       "  FROM hash_cache" +
+                                       " WHERE hash_path = ?" +
+                                       "   AND hash_size = ?" +
+                                       "   AND hash_mtime = ?");
+        ps.setString(1, file.getAbsolutePath());
+        ps.setLong(2, file.length());
+        ps.setLong(3, file.lastModified());
+        ResultSet rs = ps.executeQuery();
+        final String hash = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return hash;
+    }
+
+    /**
+     * Busca un video de la base de datos con el mismo hash rápido que un
+     * fichero.
+     * @param quickHash Hash rápido del fichero
+     * @return Hash del video, o nulo si ningún video tiene ese hash rápido
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     * @see es.davideg.uned.ii.proyecto.crypt.Hash#getQuickHash(File)
+     */
+    public synchronized String findQuickHash(final String quickHash) throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("SELECT c.hash_value" +
+                                       "  FROM hash_cache c" +
+                                       "  join videos v on v.video_hash = c.hash_value" +
+                                       " WHERE c.hash_quick = ?" +
+                                       " LIMIT 1");
+        ps.setString(1, quickHash);
+        ResultSet rs = ps.executeQuery();
+        final String hash = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return hash;
+    }
+
+    /**
+     * <p>Guarda el hash de un fichero junto con su tamaño y su fecha de
+     * modificación.</p>
+     * <p>Si hay una escritura de imagenes en curso, se confirma con ella.</p>
+     * @param file Fichero
+     * @param quickHash Hash rápido del fichero
+     * @param hash Hash del fichero
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public synchronized void cacheHash(final File file, final String quickHash, final String hash) throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("INSERT OR REPLACE INTO hash_cache (hash_path, hash_size, hash_mtime, hash_quick, hash_value)" +
+                                       " VALUES (?,?,?,?,?)");
+        ps.setString(1, file.getAbsolutePath());
+        ps.setLong(2, file.length());
+        ps.setLong(3, file.lastModified());
+        ps.setString(4, quickHash);
+        ps.setString(5, hash);
+        ps.execute();
+    }
+
+    /**
+     * Busca una imagen en la base de datos.
+     * Se devolveran aquellas imagenes que tengan un mismo valor para la
+     * transformada wavelet aplicada.
+     * @param img Imagen a buscar en la base de datos
+     * @return Lista de videos que contienen las imagenes encontradas.
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     * @see #searchImage(SearchedImage, int)
+     */
+    public List<Video> searchImage(SearchedImage img) throws SQLException, ClassNotFoundException
+    {
+        return searchImage(img, 0);
+    }
+
+    /**
+     * <p>Busca una imagen en la base de datos.</p>
+     * <p>Se devolveran aquellas imagenes cuya huella este a una distancia de
+     * Hamming igual o menor que <code>radius</code> de la huella de la imagen
+     * buscada. Los candidatos se obtienen con los indices de las bandas y se
+     * descartan los que superan la distancia.</p>
+     * <p>Cada tramo de frames con la misma huella da un único resultado, su
+     * frame representante. Los tramos contiguos de un mismo video que juntos
+     * no superan <code>image.consecutive</code> frames se agrupan y solo se
+     * devuelve el más parecido. Los
+     * videos y sus imagenes se devuelven ordenados por distancia, la
+     * distancia de cada imagen se puede consultar con
+     * <code>DatabaseImage.getDistance()</code>.</p>
+     * <p>Se puede llamar mientras se estan añadiendo videos: si el índice en
+     * memoria esta cargado la busqueda no espera a la escritura, y tanto en
+     * el índice como en la base de datos un video solo aparece cuando se han
+     * confirmado todas sus imagenes.</p>
+     * @param img Imagen a buscar en la base de datos
+     * @param radius Distancia máxima de Hamming
+     * @return Lista de videos que contienen las imagenes encontradas.
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     */
+    public List<Video> searchImage(SearchedImage img, int radius) throws SQLException, ClassNotFoundException
+    {
+        final int maxLength = getMaxRunLength();
+
+        // Si no hay ninguna huella a esa distancia no hace falta buscarla
+        final Fingerprint query = img.getWaveletValue();
+        final FingerprintFilter currentFilter = filter;
+        if (currentFilter != null
+            && currentFilter.getFingerprintBits() == query.getBits()
+            && !currentFilter.mightMatch(query, radius, MAX_VARIANTS))
+        {
+            logger.log(Level.INFO, "La imagen no esta en la base de datos (filtro de huellas)");
+            return new ArrayList<Video>();
+        }
+
+        // Uso el índice en memoria si ya esta cargado
+        final List<Match> matches = new ArrayList<Match>();
+        final List<FrequentFingerprint> frequent = new ArrayList<FrequentFingerprint>();
+        final FingerprintIndex memoryIndex = index;
+        final int checked;
+        if (memoryIndex != null && memoryIndex.isReady() && memoryIndex.getBits() == query.getBits())
+        {
+            checked = memoryIndex.search(query, radius, MAX_VARIANTS, matches, frequent);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                checked = searchDb(query, radius, matches, frequent);
+            }
+        }
+
+        // Agrupo los tramos contiguos quedandome con el más parecido
+        Collections.sort(matches, new Comparator<Match>()
+        {
+            @Override
+            public int compare(Match m1, Match m2)
+            {
+                final int cmp = m1.videoHash.compareTo(m2.videoHash);
+                return cmp != 0 ? cmp : m1.start - m2.start;
+            }
+        });
+        final List<Match> selected = new ArrayList<Match>();
+        Match best = null;
+        int first_frame = -1, last_frame = -1;
+        for (Match current : matches)
+        {
+            if (best == null
+                || !current.videoHash.equals(best.videoHash)
+                || current.start != last_frame + 1
+                || current.end - first_frame >= maxLength)
+            {
+                if (best != null)
+                {
+                    selected.add(best);
+                }
+                best = current;
+                first_frame = current.start;
+            }
+            else if (current.distance < best.distance)
+            {
+                best = current;
+            }
+            last_frame = current.end;
+        }
+        if (best != null)
+        {
+            selected.add(best);
+        }
+
+        // Ordeno por distancia, los videos quedan en el orden de su mejor imagen
+        Collections.sort(selected, new Comparator<Match>()
+        {
+            @Override
+            public int compare(Match m1, Match m2)
+            {
+                if (m1.distance != m2.distance)
+                    return m1.distance - m2.distance;
+                final int cmp = m1.videoHash.compareTo(m2.videoHash);
+                return cmp != 0 ? cmp : m1.frame - m2.frame;
+            }
+        });
+        final Map<String, Video> videos = new LinkedHashMap<String, Video>();
+        final File framesPath = selected.isEmpty() ? null : getSettings().getFramesPath();
+        for (Match match : selected)
+        {
+            Video video = videos.get(match.videoHash);
+            if (video == null)
+            {
+                video = new Video(match.videoName, new File(match.videoPath), match.videoHash, new File(framesPath, match.videoHash));
+                video.setFrameStore(FrameStore.find(framesPath, match.videoHash));
+                videos.put(match.videoHash, video);
+            }
+            final DatabaseImage image = new DatabaseImage(video.getFrameFile(match.frame)
+                                                        , match.frame
+                                                        , null
+                                                        , video.getFrameStore());
+            image.setDistance(match.distance);
+            video.addImage(image);
+        }
+        loadResultDetails(videos.values());
+
+        logger.log(Level.INFO, "Se han encontrado {0} tramos a distancia {1} o menor ({2} candidatos).", new Object[]{matches.size(), radius, checked});
+        for (FrequentFingerprint f : frequent)
+        {
+            logger.log(Level.WARNING, "Huella frecuente {0}, solo se usa una muestra de sus imagenes", f);
+        }
+        logger.log(Level.INFO, "Se procesaran {0} imagenes.", selected.size());
+        return new ArrayList<Video>(videos.values());
+    }
+
+    /**
+     * <p>Lee de la base de datos el vector de baja resolución de las
+     * imagenes encontradas, para refinar la busqueda sin leer sus frames.</p>
+     * <p>A las imagenes de videos que no tienen sus frames guardados se les
+     * asigna un <code>FrameExtractor</code> para poder mostrarlas.</p>
+     * @param videos Videos con las imagenes encontradas
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private synchronized void loadResultDetails(final Collection<Video> videos) throws ClassNotFoundException, SQLException
+    {
+        if (videos.isEmpty())
+            return;
+
+        PreparedStatement info = prepare("SELECT video_id, video_fps FROM videos WHERE video_hash = ?");
+        int found = 0;
+        for (Video video : videos)
+        {
+            info.setString(1, video.getHash());
+            ResultSet rs = info.executeQuery();
+            final int videoId = rs.next() ? rs.getInt(1) : -1;
+            if (videoId >= 0)
+                video.setFrameRate(rs.getDouble(2));
+            rs.close();
+
+            FrameExtractor extractor = null;
+            if (video.getFrameStore() == null && !video.getFramesDir().isDirectory() && video.getFrameRate() > 0)
+            {
+                extractor = new FrameExtractor(video, getSettings().getImageWidth(), getSettings().getImageHeight());
+            }
+
+            final Map<Integer, List<DatabaseImage>> byFrame = new HashMap<Integer, List<DatabaseImage>>();
+            for (DatabaseImage image : video.getImages())
+            {
+                image.setFrameExtractor(extractor);
+                List<DatabaseImage> images = byFrame.get(image.getFrameNumber());
+                if (images == null)
+                {
+                    images = new ArrayList<DatabaseImage>(1);
+                    byFrame.put(image.getFrameNumber(), images);
+                }
+                images.add(image);
+            }
+            if (videoId < 0)
+                continue;
+
+            // Los vectores de cada video se leen con una consulta por cada
+            // MAX_PARAMETERS imagenes
+            final List<Integer> numbers = new ArrayList<Integer>(byFrame.keySet());
+            for (int from = 0; from < numbers.size(); from += MAX_PARAMETERS)
+            {
+                final int to = Math.min(numbers.size(), from + MAX_PARAMETERS);
+                final int parameters = roundParameters(to - from);
+                StringBuffer sql = new StringBuffer("SELECT image_number, image_vector FROM images" +
+                                                    " WHERE video_id = ?" +
+                                                    "   AND image_number");
+                appendParameters(sql, parameters);
+
+                PreparedStatement ps = prepare(sql.toString());
+                ps.setInt(1, videoId);
+                for (int k = 0; k < parameters; k++)
+                {
+                    ps.setInt(k + 2, numbers.get(Math.min(from + k, to - 1)));
+                }
+                rs = ps.executeQuery();
+                while (rs.next())
+                {
+                    final List<DatabaseImage> images = byFrame.get(rs.getInt(1));
+                    final byte[] vector = rs.getBytes(2);
+                    if (images == null || vector == null)
+                        continue;
+                    for (DatabaseImage image : images)
+                    {
+                        if (image.getVector() == null)
+                            found++;
+                        image.setVector(vector);
+                    }
+                }
+                rs.close();
+            }
+        }
+        logger.log(Level.FINE, "Leidos {0} vectores de baja resolucion", found);
+    }
+
+    /**
+     * Busca en la base de datos las imagenes a una distancia de Hamming
+     * igual o menor que <code>radius</code>, usando los indices de las bandas.
+     * @param query Huella buscada
+     * @param radius Distancia máxima de Hamming
+     * <p>Las huellas frecuentes se excluyen de estas consultas y de cada una
+     * se obtiene aparte una muestra de sus imagenes.</p>
+     * @param matches Lista donde se añaden los resultados
+     * @param frequent Lista donde se añaden las huellas frecuentes de las que
+     * solo se ha devuelto una muestra
+     * @return Número de imagenes comprobadas
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     */
+    private int searchDb(final Fingerprint query
+                       , final int radius
+                       , final List<Match> matches
+                       , final List<FrequentFingerprint> frequent) throws SQLException, ClassNotFoundException
+    {
+        final MultiIndexHash mih = new MultiIndexHash(query.getBits());
+        final int[] bandRadius = mih.bandRadius(radius);
+        long variants = 0;
+        for (int band = 0; band < MultiIndexHash.BANDS; band++)
+        {
+            if (bandRadius[band] >= 0)
+                variants += Math.min(mih.countVariants(band, bandRadius[band]), MAX_VARIANTS + 1);
+        }
+
+        final Set<Long> seen = new HashSet<Long>();
+        final String select = "   SELECT i.rowid as image_id" +
+                              "        , image_haar" +
+                              "        , v.video_hash" +
+                              "        , video_name" +
+                              "        , video_path" +
+                              "        , image_number" +
+                              "        , image_start" +
+                              "        , image_end" +
+                              "     FROM images i" +
+                              "     join videos v on v.video_id = i.video_id";
+
+        // Muestra de las huellas frecuentes que estan dentro del radio
+        final List<FrequentFingerprint> stop = (getStopListVideos() > 0)
+                                             ? getStopList()
+                                             : Collections.<FrequentFingerprint>emptyList();
+        final String exclude = stop.isEmpty() ? "" : " i.image_haar NOT IN (SELECT image_haar FROM stoplist)";
+        final int sample = getStopListSample();
+        for (FrequentFingerprint f : stop)
+        {
+            if (query.distance(f.getFingerprint()) <= radius)
+            {
+                // Ordeno por un hash del rowid para que la muestra se reparta
+                // entre los videos, sea cual sea el orden de las filas
+                PreparedStatement ps = prepare(select + " WHERE image_haar = ? ORDER BY (i.rowid * 40503) % 65536 LIMIT ?");
+                ps.setBytes(1, toDbValue(f.getFingerprint()));
+                ps.setInt(2, sample);
+                collectMatches(ps, query, radius, seen, matches);
+                frequent.add(f);
+            }
+        }
+
+        if (radius == 0)
+        {
+            // Busqueda exacta con el índice de image_haar
+            PreparedStatement ps = prepare(select + " WHERE image_haar = ?" + (stop.isEmpty() ? "" : " AND" + exclude));
+            ps.setBytes(1, toDbValue(query));
+            collectMatches(ps, query, radius, seen, matches);
+        }
+        else if (variants > MAX_VARIANTS)
+        {
+            // Demasiados valores, es más rapido recorrer la tabla
+            logger.log(Level.WARNING, "Radio {0} demasiado grande para los indices, se recorren todas las imagenes", radius);
+            PreparedStatement ps = prepare(select + (stop.isEmpty() ? "" : " WHERE" + exclude));
+            collectMatches(ps, query, radius, seen, matches);
+        }
+        else
+        {
+            for (int band = 0; band < MultiIndexHash.BANDS; band++)
+            {
+                final List<Long> keys = mih.variants(query, band, bandRadius[band]);
+                for (int from = 0; from < keys.size(); from += MAX_PARAMETERS)
+                {
+                    final int to = Math.min(keys.size(), from + MAX_PARAMETERS);
+
+                    final int parameters = roundParameters(to - from);
+                    StringBuffer sql = new StringBuffer(select);
+                    sql.append(" WHERE image_band");
+                    sql.append(band);
+                    appendParameters(sql, parameters);
+                    if (!stop.isEmpty())
+                    {
+                        sql.append(" AND");
+                        sql.append(exclude);
+                    }
+
+                    PreparedStatement ps = prepare(sql.toString());
+                    for (int k = 0; k < parameters; k++)
+                    {
+                        ps.setLong(k + 1, keys.get(Math.min(from + k, to - 1)));
+                    }
+                    collectMatches(ps, query, radius, seen, matches);
+                }
+            }
+        }
+        return seen.size();
+    }
+
+    /**
+     * Redondea el número de parametros de una consulta con <code>IN</code>
+     * para que haya pocas consultas distintas y se puedan reutilizar. Los
+     * huecos se rellenan repitiendo el último valor.
+     * @param count Número de valores
+     * @return Número de parametros, como mucho <code>MAX_PARAMETERS</code>
+     */
+    private static int roundParameters(final int count)
+    {
+        int parameters = 16;
+        while (parameters < count)
+        {
+            parameters <<= 1;
+        }
+        return Math.min(parameters, MAX_PARAMETERS);
+    }
+
+    /**
+     * Añade a una consulta <code>IN</code> con el número de parametros
+     * indicado.
+     * @param sql Consulta
+     * @param parameters Número de parametros
+     */
+    private static void appendParameters(final StringBuffer sql, final int parameters)
+    {
+        sql.append(" IN (?");
+        for (int k = 1; k < parameters; k++)
+        {
+            sql.append(",?");
+        }
+        sql.append(")");
+    }
+
+    /**
+     * Ejecuta una consulta de candidatos y añade a <code>matches</code> los
+     * que estan a la distancia indicada o menos.
+     * @param ps Consulta preparada
+     * @param query Huella buscada
+     * @param radius Distancia máxima de Hamming
+     * @param seen Imagenes ya comprobadas, para no repetirlas
+     * @param matches Lista donde se añaden los resultados
+     * @throws SQLException
+     */
+    private static void collectMatches(final PreparedStatement ps
+                                     , final Fingerprint query
+                                     , final int radius
+                                     , final Set<Long> seen
+                                     , final List<Match> matches) throws SQLException
+    {
+        ResultSet rs = ps.executeQuery();
+        while (rs.next())
+        {
+            if (!seen.add(rs.getLong("image_id")))
+                continue;
+
+            final Fingerprint candidate = fromDbValue(rs.getBytes("image_haar"), query.getBits());
+            final int distance = query.distance(candidate);
+            if (distance <= radius)
+            {
+                matches.add(new Match(rs.getString("video_hash")
+                                    , rs.getString("video_name")
+                                    , rs.getString("video_path")
+                                    , rs.getInt("image_number")
+                                    , rs.getInt("image_start")
+                                    , rs.getInt("image_end")
+                                    , distance));
+            }
+        }
+        rs.close();
+    }
+
+    /**
+     * <p>Carga en memoria el índice de huellas de la base de datos.</p>
+     * <p>Las imagenes se leen por bloques, soltando la conexión entre bloque
+     * y bloque para que el resto de la aplicación pueda seguir usando la base
+     * de datos mientras tanto. Los videos que se añaden o eliminan durante la
+     * carga se aplican directamente sobre el índice. Hasta que termina la
+     * carga las busquedas se hacen sobre la base de datos.</p>
+     * <p>Se debe llamar desde un thread distinto al de la interfaz.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void loadIndex() throws ClassNotFoundException, SQLException
+    {
+        final long start = System.currentTimeMillis();
+        final FingerprintIndex loading;
+        final List<Integer> videoIds = new ArrayList<Integer>();
+        final List<String[]> videoNames = new ArrayList<String[]>();
+        synchronized (this)
+        {
+            final int bits = getSettings().getFingerprintBits();
+            conn = connect();
+
+            // Los videos que se añadan a partir de aquí llegan con addAll
+            Statement stat = conn.createStatement();
+            ResultSet rs = stat.executeQuery("   SELECT video_id, video_hash, video_name, video_path" +
+                                             "     FROM videos" +
+                                             " ORDER BY video_id");
+            while (rs.next())
+            {
+                videoIds.add(rs.getInt(1));
+                videoNames.add(new String[]{rs.getString(2), rs.getString(3), rs.getString(4)});
+            }
+            rs.close();
+            stat.close();
+
+            loading = new FingerprintIndex(bits);
+            loading.setStopList(getStopListVideos(), getStopListSample());
+            addedWhileLoading.clear();
+            index = loading;
+        }
+
+        // Las imagenes se leen video a video, así los tramos de cada video
+        // llegan seguidos al índice
+        int video = 0;
+        int last = Integer.MIN_VALUE;
+        while (video < videoIds.size())
+        {
+            synchronized (this)
+            {
+                if (index != loading)
+                {
+                    // Se ha cambiado de base de datos
+                    return;
+                }
+
+                final String[] names = videoNames.get(video);
+                int count = 0;
+                if (!addedWhileLoading.contains(names[0]))
+                {
+                    PreparedStatement ps = prepare("   SELECT image_haar" +
+                                                   "        , image_number" +
+                                                   "        , image_start" +
+                                                   "        , image_end" +
+                                                   "     FROM images" +
+                                                   "    WHERE video_id = ?" +
+                                                   "      AND image_number > ?" +
+                                                   " ORDER BY image_number" +
+                                                   "    LIMIT " + INDEX_CHUNK);
+                    ps.setInt(1, videoIds.get(video));
+                    ps.setInt(2, last);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next())
+                    {
+                        count++;
+                        last = rs.getInt(2);
+                        loading.add(names[0]
+                                  , names[1]
+                                  , names[2]
+                                  , last
+                                  , rs.getInt(3)
+                                  , rs.getInt(4)
+                                  , fromDbValue(rs.getBytes(1), loading.getBits()));
+                    }
+                    rs.close();
+                }
+                if (count < INDEX_CHUNK)
+                {
+                    video++;
+                    last = Integer.MIN_VALUE;
+                }
+            }
+        }
+
+        synchronized (this)
+        {
+            addedWhileLoading.clear();
+            loading.setReady();
+        }
+        logger.log(Level.INFO, "Indice de huellas cargado en {0} ms: {1}", new Object[]{System.currentTimeMillis() - start, loading});
+    }
+
+    /**
+     * <p>Carga el filtro de huellas de la base de datos.</p>
+     * <p>El filtro se guarda en un fichero junto a la base de datos
+     * (<code>.bloom</code>). Si el fichero no existe o no corresponde al
+     * contenido actual de la base de datos el filtro se vuelve a calcular.
+     * Con <code>db.bloom.fpr</code> a 0 no se usa filtro.</p>
+     * <p>Se debe llamar desde un thread distinto al de la interfaz.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void loadFilter() throws ClassNotFoundException, SQLException
+    {
+        if (getFilterRate() <= 0)
+        {
+            logger.log(Level.INFO, "Filtro de huellas desactivado (db.bloom.fpr={0})", ConfigurationManager.getProperty("db.bloom.fpr"));
+            return;
+        }
+
+        synchronized (this)
+        {
+            final File file = getFilterFile();
+            if (file != null)
+            {
+                try
+                {
+                    final FingerprintFilter loaded = FingerprintFilter.load(file, getFilterStamp());
+                    if (loaded != null && loaded.getFingerprintBits() == getSettings().getFingerprintBits())
+                    {
+                        filter = loaded;
+                        filterSaved = true;
+                        logger.log(Level.INFO, "Filtro de huellas cargado: {0}", loaded);
+                        return;
+                    }
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.WARNING, "No se ha podido leer el filtro de huellas: {0}", ex.getMessage());
+                }
+            }
+        }
+        rebuildFilter();
+    }
+
+    /**
+     * <p>Vuelve a calcular el filtro de huellas con todas las imagenes de la
+     * base de datos y lo guarda en su fichero.</p>
+     * <p>El tamaño del filtro se calcula a partir del número de imagenes, por
+     * eso conviene recalcularlo después de añadir videos. Mientras tanto se
+     * sigue usando el filtro anterior. Las imagenes se leen por bloques igual
+     * que al cargar el índice.</p>
+     * <p>Se debe llamar desde un thread distinto al de la interfaz.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void rebuildFilter() throws ClassNotFoundException, SQLException
+    {
+        final double rate = getFilterRate();
+        if (rate <= 0)
+            return;
+
+        final long start = System.currentTimeMillis();
+        final FingerprintFilter rebuilt;
+        final int bits;
+        long last = 0, max;
+        synchronized (this)
+        {
+            bits = getSettings().getFingerprintBits();
+            max = getFilterStamp();
+
+            // Dejo sitio para que se puedan añadir videos sin que se degrade
+            rebuilt = new FingerprintFilter(bits, max + max / 4, rate);
+            building = rebuilt;
+        }
+
+        boolean more = true;
+        while (more)
+        {
+            synchronized (this)
+            {
+                if (building != rebuilt)
+                {
+                    // Se ha cambiado de base de datos o se ha empezado otro
+                    return;
+                }
+
+                PreparedStatement ps = prepare("   SELECT rowid, image_haar" +
+                                               "     FROM images" +
+                                               "    WHERE rowid > ?" +
+                                               "      AND rowid <= ?" +
+                                               " ORDER BY rowid" +
+                                               "    LIMIT " + INDEX_CHUNK);
+                ps.setLong(1, last);
+                ps.setLong(2, max);
+                ResultSet rs = ps.executeQuery();
+                more = false;
+                while (rs.next())
+                {
+                    more = true;
+                    last = rs.getLong(1);
+                    rebuilt.add(fromDbValue(rs.getBytes(2), bits));
+                }
+                rs.close();
+            }
+        }
+
+        synchronized (this)
+        {
+            if (building != rebuilt)
+                return;
+
+            building = null;
+            filter = rebuilt;
+            final File file = getFilterFile();
+            if (file != null)
+            {
+                try
+                {
+                    rebuilt.save(file, getFilterStamp());
+                    filterSaved = true;
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.WARNING, "No se ha podido guardar el filtro de huellas: {0}", ex.getMessage());
+                }
+            }
+        }
+        logger.log(Level.INFO, "Filtro de huellas calculado en {0} ms: {1}", new Object[]{System.currentTimeMillis() - start, rebuilt});
+    }
+
+    /**
+     * Devuelve la tasa de falsos positivos estimada del filtro de huellas.
+     * @return Probabilidad de que una imagen que no esta en la base de datos
+     * haya que buscarla, o -1 si no hay filtro
+     */
+    public double getFilterFalsePositiveRate()
+    {
+        final FingerprintFilter current = filter;
+        return (current != null) ? current.getFalsePositiveRate() : -1;
+    }
+
+    /**
+     * Devuelve la memoria que ocupa el filtro de huellas.
+     * @return Tamaño en bytes, 0 si no hay filtro
+     */
+    public long getFilterMemory()
+    {
+        final FingerprintFilter current = filter;
+        return (current != null) ? current.getMemory() : 0;
+    }
+
+    /**
+     * Añade huellas al filtro y al que se este calculando, e invalida el
+     * fichero del filtro. Se debe llamar con el bloqueo.
+     * @param runs Tramos nuevos
+     */
+    private void addToFilter(final List<FrameRun> runs)
+    {
+        final FingerprintFilter current = filter;
+        if (current == null && building == null)
+            return;
+
+        for (FrameRun run : runs)
+        {
+            if (current != null)
+                current.add(run.getFingerprint());
+            if (building != null)
+                building.add(run.getFingerprint());
+        }
+
+        if (filterSaved)
+        {
+            final File file = getFilterFile();
+            if (file != null && file.exists() && !file.delete())
+                logger.log(Level.WARNING, "No se ha podido borrar el filtro de huellas {0}", file);
+            filterSaved = false;
+        }
+    }
+
+    /**
+     * Devuelve la tasa de falsos positivos pedida para el filtro de huellas.
+     * @return Tasa configurada en <code>db.bloom.fpr</code>, 0 si no se usa filtro
+     */
+    private static double getFilterRate()
+    {
+        try
+        {
+            final double rate = Double.parseDouble(ConfigurationManager.getProperty("db.bloom.fpr"));
+            return (rate > 0 && rate < 1) ? rate : 0;
+        }
+        catch (NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Devuelve el fichero donde se guarda el filtro de huellas.
+     * @return Fichero o <code>null</code> si la base de datos no esta en un fichero
+     */
+    private File getFilterFile()
+    {
+        final String prefix = "jdbc:sqlite:";
+        if (connectionString == null || !connectionString.startsWith(prefix))
+            return null;
+        final String path = connectionString.substring(prefix.length());
+        if (path.length() == 0 || path.startsWith(":"))
+            return null;
+        return new File(path + ".bloom");
+    }
+
+    /**
+     * Valor que identifica el contenido de la tabla de imagenes para
+     * comprobar que el fichero del filtro esta al día: el mayor rowid.
+     * @return Mayor rowid de las imagenes
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private long getFilterStamp() throws ClassNotFoundException, SQLException
+    {
+        PreparedStatement ps = prepare("SELECT max(rowid) FROM images");
+        ResultSet rs = ps.executeQuery();
+        final long max = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        return max;
+    }
+
+    /**
+     * <p>Vuelve a calcular la tabla de huellas frecuentes: las que aparecen
+     * en más de <code>image.stoplist.videos</code> videos.</p>
+     * <p>Conviene llamarlo después de añadir o eliminar videos, desde un
+     * thread distinto al de la interfaz. La consulta solo recorre el índice
+     * de image_haar.</p>
+     * <p>Si hay una ingesta escribiendo, espera a que confirme su
+     * transacción.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public synchronized void rebuildStopList() throws ClassNotFoundException, SQLException
+    {
+        final long start = System.currentTimeMillis();
+        awaitWriteIdle();
+        conn.setAutoCommit(false);
+        try
+        {
+            fillStopList();
+            commitWrite();
+        }
+        catch (SQLException ex)
+        {
+            conn.rollback();
+            conn.setAutoCommit(true);
+            throw ex;
+        }
+        stopList = null;
+
+        final List<FrequentFingerprint> frequent = getStopList();
+        logger.log(Level.INFO, "Calculadas en {0} ms las huellas frecuentes: {1}", new Object[]{System.currentTimeMillis() - start, frequent.size()});
+        for (FrequentFingerprint f : frequent)
+        {
+            logger.log(Level.INFO, "Huella frecuente {0}", f);
+        }
+    }
+
+    /**
+     * Rellena la tabla de huellas frecuentes. Se debe llamar dentro de una
+     * transacción.
+     * @throws SQLException
+     */
+    private void fillStopList() throws SQLException
+    {
+        Statement stat = conn.createStatement();
+        stat.execute("DELETE FROM stoplist");
+        stat.close();
+
+        final int maxVideos = getStopListVideos();
+        if (maxVideos > 0)
+        {
+            PreparedStatement ps = conn.prepareStatement("INSERT INTO stoplist (image_haar, video_count, image_count)" +
+                                                         "     SELECT image_haar, count(distinct video_id), count(*)" +
+                                                         "       FROM images" +
+                                                         "   GROUP BY image_haar" +
+                                                         "     HAVING count(distinct video_id) > ?");
+            ps.setInt(1, maxVideos);
+            ps.execute();
+            ps.close();
+        }
+    }
+
+    /**
+     * <p>Devuelve las huellas frecuentes de la base de datos, ordenadas de
+     * más a menos videos.</p>
+     * <p>Al buscar una de estas huellas en la base de datos solo se devuelve
+     * una muestra de sus imagenes. El índice en memoria lleva su propia
+     * cuenta y aplica el mismo límite a las huellas que lo superan aunque
+     * todavía no esten en la tabla.</p>
+     * @return Huellas frecuentes
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public List<FrequentFingerprint> getStopList() throws ClassNotFoundException, SQLException
+    {
+        List<FrequentFingerprint> current = stopList;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = stopList;
+                if (current == null)
+                {
+                    final int bits = getSettings().getFingerprintBits();
+                    final List<FrequentFingerprint> loaded = new ArrayList<FrequentFingerprint>();
+                    PreparedStatement ps = prepare("   SELECT image_haar, video_count, image_count" +
+                                                   "     FROM stoplist" +
+                                                   " ORDER BY video_count desc");
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next())
+                    {
+                        loaded.add(new FrequentFingerprint(fromDbValue(rs.getBytes(1), bits), rs.getInt(2), rs.getInt(3)));
+                    }
+                    rs.close();
+                    current = Collections.unmodifiableList(loaded);
+                    stopList = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Número de videos a partir del cual una huella es frecuente.
+     * @return Valor de <code>image.stoplist.videos</code>, 0 si no se limita
+     */
+    private static int getStopListVideos()
+    {
+        return Math.max(0, ConfigurationManager.getIntProperty("image.stoplist.videos", 100));
+    }
+
+    /**
+     * Número de tramos que se devuelven al buscar una huella frecuente.
+     * @return Valor de <code>image.stoplist.sample</code>
+     */
+    private static int getStopListSample()
+    {
+        return Math.max(1, ConfigurationManager.getIntProperty("image.stoplist.sample", 20));
+    }
+
+    /**
+     * Convierte una huella al formato con el que se guarda en la columna
+     * image_haar: los bytes de la huella, empezando por el más significativo.
+     * @param fingerprint Huella
+     * @return Valor para la base de datos
+     * @see Fingerprint#toBytes()
+     */
+    private static byte[] toDbValue(final Fingerprint fingerprint)
+    {
+        return fingerprint.toBytes();
+    }
+
+    /**
+     * Obtiene una huella a partir del valor guardado en la columna image_haar.
+     * @param value Valor de la base de datos
+     * @param bits Número de bits de la huella
+     * @return Huella
+     */
+    private static Fingerprint fromDbValue(final byte[] value, final int bits)
+    {
+        return Fingerprint.fromBytes(value, bits);
+    }
+
+    /**
+     * Obtiene una huella a partir del valor entero en decimal con el que se
+     * guardaba en versiones anteriores del esquema.
+     * @param value Valor de la base de datos
+     * @param bits Número de bits de la huella
+     * @return Huella
+     */
+    private static Fingerprint fromDecimal(final String value, final int bits)
+    {
+        return Fingerprint.fromBigInteger(new BigInteger(value), bits);
+    }
+
+    /**
+     * Tramo encontrado en una busqueda junto con los datos de su video.
+     * La ruta de la imagen del frame representante se obtiene a partir del
+     * directorio de frames.
+     */
+    static class Match
+    {
+        private final String videoHash, videoName, videoPath;
+        private final int frame, start, end;
+        private final int distance;
+
+        Match(final String videoHash
+                   , final String videoName
+                   , final String videoPath
+                   , final int frame
+                   , final int start
+                   , final int end
+                   , final int distance)
+        {
+            this.videoHash = videoHash;
+            this.videoName = videoName;
+            this.videoPath = videoPath;
+            this.frame = frame;
+            this.start = start;
+            this.end = end;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Devuelve la lista de videos existentes
+     * @return Lista de videos
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public synchronized List<Video> getVideoList() throws ClassNotFoundException, SQLException
+    {
+        List videoList = new ArrayList();
+        conn = connect();
+
+        PreparedStatement ps = conn.prepareStatement("   SELECT video_hash" +
+                                                     "        , video_name" +
+                                                     "        , video_path" +
+                                                     "        , video_fps" +
+                                                     "        , value || '/' || video_hash as frames_path" +
+                                                     "     FROM videos" +
+                                                     "     cross join configuration" +
+                                                     "    WHERE property = ?" +
+                                                     " ORDER BY video_name");
+        ps.setString(1, DbProperty.FRAMES_PATH.toString());
+        ResultSet rs = ps.executeQuery();
+        while (rs.next())
+        {
+            final Video video = new Video(rs.getString("video_name")
+                                        , new File(rs.getString("video_path"))
+                                        , rs.getString("video_hash")
+                                        , new File(rs.getString("frames_path")));
+            video.setFrameRate(rs.getDouble("video_fps"));
+            videoList.add(video);
+        }
+        rs.close();
+        ps.close();
+        return videoList;
+    }
+
+    /**
+     * Devuelve la cadena de conexión usada
+     * @return Cadena de conexión
+     */
+    public String getConnectionString()
+    {
+        return connectionString;
+    }
+
+    /**
+     * Estable la cadena de conexion. Si habia una conexión abierta con otra
+     * base de datos se cierra.
+     * @param connectionString Cadena de conexion
+     */
+    public synchronized void setConnectionString(String connectionString)
+    {
+        if (this.connectionString != null && !this.connectionString.equals(connectionString))
+        {
+            try
+            {
+                disconnect();
+            }
+            catch (SQLException ex)
+            {
+                logger.log(Level.WARNING, "No se ha podido cerrar la base de datos anterior: {0}", ex.getMessage());
+            }
+        }
         this.connectionString = connectionString;
+        this.index = null;
+        this.filter = null;
+        this.stopList = null;
+        this.building = null;
+        this.filterSaved = false;
+        this.nextVideoId = -1;
     }
 
     /**
@@ -449,7 +2364,7 @@ public class DbManager
      */
     public void setConnectionString(File f)
     {
-        this.connectionString = "jdbc:sqlite:" + f.getAbsolutePath();
+        setConnectionString("jdbc:sqlite:" + f.getAbsolutePath());
     }
 
     /**
@@ -0,0 +1,183 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.db.DbManager.DbProperty;
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * <p>Configuración de una base de datos, tal y como esta guardada en la
+ * tabla <code>configuration</code>.</p>
+ * <p>Los objetos de esta clase son inmutables: <code>DbManager</code> lee la
+ * tabla entera de una vez y crea un objeto nuevo cada vez que cambia alguna
+ * propiedad, así que se pueden compartir entre threads y consultar sin
+ * acceder a la base de datos.</p>
+ * @see DbManager#getSettings()
+ * @author David Escribano García
+ */
+public final class DbSettings
+{
+    private final Map<DbProperty, String> values;
+    private final Integer imageWidth, imageHeight;
+    private final Integer haarWidth, haarHeight;
+    private final int schemaVersion;
+
+    /**
+     * Crea la configuración a partir de los valores de la tabla.
+     * @param values Valor de cada propiedad, se copian
+     */
+    DbSettings(final Map<DbProperty, String> values)
+    {
+        final Map<DbProperty, String> copy = new EnumMap<DbProperty, String>(DbProperty.class);
+        copy.putAll(values);
+        this.values = Collections.unmodifiableMap(copy);
+        this.imageWidth = parse(DbProperty.IMAGE_SIZE_X);
+        this.imageHeight = parse(DbProperty.IMAGE_SIZE_Y);
+        this.haarWidth = parse(DbProperty.HAAR_SIZE_X);
+        this.haarHeight = parse(DbProperty.HAAR_SIZE_Y);
+
+        // Las bases de datos sin version son de la version 1
+        final Integer version = parse(DbProperty.SCHEMA_VERSION);
+        this.schemaVersion = (version != null) ? version : 1;
+    }
+
+    /**
+     * Devuelve el valor de una propiedad.
+     * @param property Propiedad
+     * @return Valor de la propiedad o <code>null</code> si no existe
+     */
+    public String get(final DbProperty property)
+    {
+        return values.get(property);
+    }
+
+    /**
+     * @return Programa con el que se procesan los videos
+     */
+    public String getVideoProcessor()
+    {
+        return require(DbProperty.VIDEO_PROCESSOR);
+    }
+
+    /**
+     * @return Directorio donde se guardan los frames de los videos
+     */
+    public File getFramesPath()
+    {
+        return new File(require(DbProperty.FRAMES_PATH));
+    }
+
+    /**
+     * @return Ancho al que se escalan los frames
+     */
+    public int getImageWidth()
+    {
+        return require(DbProperty.IMAGE_SIZE_X, imageWidth);
+    }
+
+    /**
+     * @return Alto al que se escalan los frames
+     */
+    public int getImageHeight()
+    {
+        return require(DbProperty.IMAGE_SIZE_Y, imageHeight);
+    }
+
+    /**
+     * @return Ancho de la wavelet
+     */
+    public int getHaarWidth()
+    {
+        return require(DbProperty.HAAR_SIZE_X, haarWidth);
+    }
+
+    /**
+     * @return Alto de la wavelet
+     */
+    public int getHaarHeight()
+    {
+        return require(DbProperty.HAAR_SIZE_Y, haarHeight);
+    }
+
+    /**
+     * @return Número de bits de las huellas
+     */
+    public int getFingerprintBits()
+    {
+        return getHaarWidth() * getHaarHeight();
+    }
+
+    /**
+     * @return Versión del esquema de la base de datos
+     */
+    public int getSchemaVersion()
+    {
+        return schemaVersion;
+    }
+
+    /**
+     * Obtiene el valor entero de una propiedad.
+     * @return Valor o <code>null</code> si no existe o no es un número
+     */
+    private Integer parse(final DbProperty property)
+    {
+        final String value = values.get(property);
+        if (value == null)
+            return null;
+        try
+        {
+            return Integer.valueOf(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Obtiene el valor de una propiedad obligatoria.
+     * @throws IllegalStateException Si la propiedad no existe
+     */
+    private String require(final DbProperty property)
+    {
+        final String value = values.get(property);
+        if (value == null)
+            throw new IllegalStateException("Propiedad no encontrada: " + property);
+        return value;
+    }
+
+    /**
+     * Obtiene el valor entero de una propiedad obligatoria.
+     * @throws IllegalStateException Si la propiedad no existe o no es un número
+     */
+    private int require(final DbProperty property, final Integer value)
+    {
+        if (value == null)
+            throw new IllegalStateException("Propiedad no encontrada o no válida: " + property);
+        return value;
+    }
+}
@@ -0,0 +1,336 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * <p>Filtro de Bloom con las huellas de la base de datos.</p>
+ * <p>Permite saber sin acceder a la base de datos que una huella no esta
+ * guardada. Si el filtro dice que la huella puede estar hay que buscarla, ya
+ * que con una probabilidad pequeña (la tasa de falsos positivos) no esta.</p>
+ * <p>Además de la huella completa se guarda el valor de cada una de sus
+ * bandas (<code>MultiIndexHash</code>). Así también se pueden descartar
+ * busquedas con radio: si ninguno de los valores de banda que habría que
+ * buscar puede estar, ninguna huella está a esa distancia.</p>
+ * <p>Las posiciones de cada elemento se obtienen con doble hash a partir de
+ * dos valores de 64 bits calculados con sus palabras.</p>
+ * <p>Las consultas se pueden hacer desde varios threads a la vez, pero las
+ * inserciones se tienen que hacer de una en una (<code>DbManager</code> las
+ * hace siempre con su bloqueo).</p>
+ * @author David Escribano García
+ */
+final class FingerprintFilter
+{
+    private static final int MAGIC = 0x56534246;
+    private static final int FORMAT = 2;
+    private static final long SEED1 = 0x9E3779B97F4A7C15L;
+    private static final long SEED2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final int fingerprintBits;
+    private final MultiIndexHash mih;
+    private final long[] words;
+    private final long size;
+    private final int hashes;
+    private long count = 0;
+
+    /**
+     * Crea un filtro vacio.
+     * @param fingerprintBits Número de bits de las huellas
+     * @param expected Número de huellas que se espera guardar
+     * @param falsePositiveRate Tasa de falsos positivos deseada con ese número de huellas
+     */
+    FingerprintFilter(final int fingerprintBits, final long expected, final double falsePositiveRate)
+    {
+        // Cada huella añade su valor y el de sus bandas
+        final long n = Math.max(expected, 1024) * (1 + MultiIndexHash.BANDS);
+        final double ln2 = Math.log(2);
+        final long m = (long)Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.fingerprintBits = fingerprintBits;
+        this.mih = new MultiIndexHash(fingerprintBits);
+        this.words = new long[(int)Math.min((m + 63) >>> 6, Integer.MAX_VALUE - 8)];
+        this.size = (long)words.length << 6;
+        this.hashes = (int)Math.max(1, Math.min(16, Math.round((double)size / n * ln2)));
+    }
+
+    /**
+     * Crea un filtro con un contenido ya calculado.
+     */
+    private FingerprintFilter(final int fingerprintBits, final long[] words, final int hashes, final long count)
+    {
+        this.fingerprintBits = fingerprintBits;
+        this.mih = new MultiIndexHash(fingerprintBits);
+        this.words = words;
+        this.size = (long)words.length << 6;
+        this.hashes = hashes;
+        this.count = count;
+    }
+
+    /**
+     * Añade una huella y los valores de sus bandas al filtro.
+     * @param fingerprint Huella
+     */
+    void add(final Fingerprint fingerprint)
+    {
+        set(hash(fingerprint, SEED1), hash(fingerprint, SEED2));
+        final long[] keys = mih.keys(fingerprint);
+        for (int band = 0; band < keys.length; band++)
+        {
+            set(hash(band, keys[band], SEED1), hash(band, keys[band], SEED2));
+        }
+        count++;
+    }
+
+    /**
+     * Indica si una huella puede estar en el filtro.
+     * @param fingerprint Huella
+     * @return Falso si seguro que la huella no esta, verdadero si puede estar
+     */
+    boolean mightContain(final Fingerprint fingerprint)
+    {
+        return test(hash(fingerprint, SEED1), hash(fingerprint, SEED2));
+    }
+
+    /**
+     * <p>Indica si puede haber alguna huella a una distancia dada de otra.</p>
+     * <p>Se comprueban los mismos valores de banda que buscaría el índice
+     * (con el radio de cada banda de <code>MultiIndexHash</code>). Con los
+     * radios habituales cada banda tiene un único valor; si hay demasiados
+     * se responde que puede haberla sin comprobarlos.</p>
+     * @param fingerprint Huella buscada
+     * @param radius Distancia máxima de Hamming
+     * @param maxVariants Número máximo de valores de banda a comprobar
+     * @return Falso si seguro que no hay ninguna, verdadero si puede haberla
+     */
+    boolean mightMatch(final Fingerprint fingerprint, final int radius, final long maxVariants)
+    {
+        if (radius == 0)
+            return mightContain(fingerprint);
+
+        final int[] bandRadius = mih.bandRadius(radius);
+        long variants = 0;
+        for (int band = 0; band < bandRadius.length; band++)
+        {
+            if (bandRadius[band] >= 0)
+                variants += Math.min(mih.countVariants(band, bandRadius[band]), maxVariants + 1);
+        }
+        if (variants > maxVariants)
+            return true;
+
+        for (int band = 0; band < bandRadius.length; band++)
+        {
+            for (long key : mih.variants(fingerprint, band, bandRadius[band]))
+            {
+                if (test(hash(band, key, SEED1), hash(band, key, SEED2)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pone a 1 los bits de un elemento.
+     */
+    private void set(final long h1, final long h2)
+    {
+        final long step = h2 | 1;
+        for (int i = 0; i < hashes; i++)
+        {
+            final long bit = ((h1 + i * step) & Long.MAX_VALUE) % size;
+            words[(int)(bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Comprueba si están a 1 todos los bits de un elemento.
+     */
+    private boolean test(final long h1, final long h2)
+    {
+        final long step = h2 | 1;
+        for (int i = 0; i < hashes; i++)
+        {
+            final long bit = ((h1 + i * step) & Long.MAX_VALUE) % size;
+            if ((words[(int)(bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Número de bits de las huellas del filtro
+     */
+    int getFingerprintBits()
+    {
+        return fingerprintBits;
+    }
+
+    /**
+     * @return Número de huellas añadidas, contando las repetidas
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return Memoria que ocupa el filtro en bytes
+     */
+    long getMemory()
+    {
+        return (long)words.length * 8;
+    }
+
+    /**
+     * Estima la tasa de falsos positivos actual a partir de la proporción de
+     * bits a 1 del filtro.
+     * @return Probabilidad de que una huella que no esta de positivo
+     */
+    double getFalsePositiveRate()
+    {
+        long ones = 0;
+        for (long word : words)
+        {
+            ones += Long.bitCount(word);
+        }
+        return Math.pow((double)ones / size, hashes);
+    }
+
+    /**
+     * <p>Guarda el filtro en un fichero.</p>
+     * <p>Se escribe primero en un fichero temporal que luego se renombra, para
+     * no dejar nunca un filtro a medias.</p>
+     * @param file Fichero
+     * @param stamp Valor con el que se comprueba al leer que el filtro
+     * corresponde a la base de datos
+     * @throws IOException
+     */
+    void save(final File file, final long stamp) throws IOException
+    {
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(stamp);
+            out.writeInt(fingerprintBits);
+            out.writeInt(hashes);
+            out.writeLong(count);
+            out.writeInt(words.length);
+            for (long word : words)
+            {
+                out.writeLong(word);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (file.exists() && !file.delete())
+            throw new IOException("No se puede reemplazar " + file);
+        if (!tmp.renameTo(file))
+            throw new IOException("No se puede renombrar " + tmp);
+    }
+
+    /**
+     * Lee un filtro guardado con <code>save</code>.
+     * @param file Fichero
+     * @param stamp Valor que se tiene que haber guardado con el filtro
+     * @return Filtro o <code>null</code> si el fichero no existe o no
+     * corresponde a la base de datos
+     * @throws IOException
+     */
+    static FingerprintFilter load(final File file, final long stamp) throws IOException
+    {
+        if (!file.isFile())
+            return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT || in.readLong() != stamp)
+                return null;
+            final int fingerprintBits = in.readInt();
+            final int hashes = in.readInt();
+            final long count = in.readLong();
+            final long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++)
+            {
+                words[i] = in.readLong();
+            }
+            return new FingerprintFilter(fingerprintBits, words, hashes, count);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Calcula un hash de 64 bits de la huella.
+     */
+    private static long hash(final Fingerprint fingerprint, final long seed)
+    {
+        long h = seed ^ fingerprint.getBits();
+        for (int i = 0; i < fingerprint.getWordCount(); i++)
+        {
+            h = (h ^ fingerprint.getWord(i)) * 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 32;
+        }
+        h ^= h >>> 29;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Calcula un hash de 64 bits del valor de una banda.
+     */
+    private static long hash(final int band, final long key, final long seed)
+    {
+        long h = (seed ^ (band + 1)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ key) * 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 29;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Devuelve una descripción del filtro.
+     * @return Descripción
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%d huellas, %d KiB, %d hashes, falsos positivos %.4f%%"
+                           , count, getMemory() >> 10, hashes, getFalsePositiveRate() * 100);
+    }
+}
@@ -0,0 +1,630 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Índice en memoria de las huellas de la base de datos.</p>
+ * <p>Cada huella distinta se guarda una sola vez en una tabla hash de
+ * direccionamiento abierto, con una lista compacta de los tramos
+ * <code>(video, frame, primer frame, último frame)</code> en los que
+ * aparece (ver <code>FrameRun</code>). Los videos se identifican con un
+ * número local que solo existe en memoria.</p>
+ * <p>Para las busquedas por distancia se mantiene además una tabla por cada
+ * banda de la huella (ver <code>MultiIndexHash</code>) que encadena las
+ * huellas que comparten el valor de esa banda.</p>
+ * <p>De cada huella se lleva la cuenta de en cuantos videos aparece. Las
+ * huellas que aparecen en demasiados videos (frames negros, fundidos,
+ * cartelas...) son frecuentes: al buscarlas solo se devuelve una muestra de
+ * sus tramos repartida entre todos ellos.</p>
+ * <p>Los objetos de esta clase se pueden usar desde varios threads: las
+ * busquedas comparten un bloqueo de lectura y las modificaciones usan uno de
+ * escritura.</p>
+ * @author David Escribano García
+ */
+final class FingerprintIndex
+{
+    private static final int EMPTY = -1;
+    private static final int POSTING = 4;
+
+    private final int bits;
+    private final int wordCount;
+    private final MultiIndexHash mih;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready = false;
+
+    // Huellas distintas, wordCount palabras por huella
+    private long[] fingerprints;
+    private int size = 0;
+    private int[] slots;
+
+    // Tramos de cada huella (POSTING enteros por tramo), y número de videos
+    // distintos
+    private int[][] postings;
+    private int[] postingLength;
+    private int[] videoCount;
+
+    // Huellas frecuentes
+    private int maxVideos = 0;
+    private int sample = 0;
+
+    // Tablas por banda: valor de la banda -> primera huella, y siguiente
+    // huella con el mismo valor
+    private final long[][] bandKeys = new long[MultiIndexHash.BANDS][];
+    private final int[][] bandHeads = new int[MultiIndexHash.BANDS][];
+    private final int[][] bandNext = new int[MultiIndexHash.BANDS][];
+
+    // Videos
+    private final List<VideoEntry> videos = new ArrayList<VideoEntry>();
+    private final Map<String, Integer> videoIds = new HashMap<String, Integer>();
+    private int postingCount = 0;
+
+    /**
+     * Crea un índice vacio.
+     * @param bits Número de bits de las huellas
+     */
+    FingerprintIndex(final int bits)
+    {
+        this.bits = bits;
+        this.wordCount = Fingerprint.wordCount(bits);
+        this.mih = new MultiIndexHash(bits);
+
+        final int capacity = 1024;
+        fingerprints = new long[capacity * wordCount];
+        postings = new int[capacity][];
+        postingLength = new int[capacity];
+        videoCount = new int[capacity];
+        slots = newTable(capacity * 2);
+        for (int band = 0; band < MultiIndexHash.BANDS; band++)
+        {
+            bandKeys[band] = new long[capacity * 2];
+            bandHeads[band] = newTable(capacity * 2);
+            bandNext[band] = new int[capacity];
+        }
+    }
+
+    /**
+     * Indica si el índice ya tiene todas las imagenes de la base de datos.
+     * @return Verdadero si se puede usar para buscar
+     */
+    boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * Establece a partir de cuantos videos una huella es frecuente.
+     * @param maxVideos Número máximo de videos, 0 para no limitar
+     * @param sample Número de imagenes que se devuelven de una huella frecuente
+     */
+    void setStopList(final int maxVideos, final int sample)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            this.maxVideos = maxVideos;
+            this.sample = Math.max(1, sample);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marca el índice como completo.
+     */
+    void setReady()
+    {
+        this.ready = true;
+    }
+
+    /**
+     * Devuelve el número de bits de las huellas del índice.
+     * @return Número de bits
+     */
+    int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Añade un tramo al índice. Los tramos de cada video se tienen que
+     * añadir seguidos, sin intercalar tramos de otros videos, porque el
+     * número de videos de cada huella se cuenta comparando con el último.
+     * @param videoHash Hash del video
+     * @param videoName Nombre del video
+     * @param videoPath Ruta del video
+     * @param frame Frame que representa al tramo
+     * @param start Primer frame del tramo
+     * @param end Último frame del tramo
+     * @param fingerprint Huella del tramo
+     */
+    void add(final String videoHash
+           , final String videoName
+           , final String videoPath
+           , final int frame
+           , final int start
+           , final int end
+           , final Fingerprint fingerprint)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            insert(videoId(videoHash, videoName, videoPath), frame, start, end, fingerprint);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Añade todos los tramos de un video. Las busquedas ven el video
+     * completo o no lo ven, nunca solo una parte de sus tramos.
+     * @param videoHash Hash del video
+     * @param videoName Nombre del video
+     * @param videoPath Ruta del video
+     * @param runs Tramos del video
+     */
+    void addAll(final String videoHash
+              , final String videoName
+              , final String videoPath
+              , final List<FrameRun> runs)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            final int video = videoId(videoHash, videoName, videoPath);
+            for (FrameRun run : runs)
+            {
+                insert(video, run.getFrameNumber(), run.getFirst(), run.getLast(), run.getFingerprint());
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Añade un tramo a la lista de su huella. Se debe tener el bloqueo de
+     * escritura.
+     */
+    private void insert(final int video, final int frame, final int start, final int end, final Fingerprint fingerprint)
+    {
+        final int id = findOrInsert(fingerprint);
+        int[] list = postings[id];
+        final int length = postingLength[id];
+        if (list == null)
+        {
+            list = new int[POSTING];
+        }
+        else if (length == list.length)
+        {
+            list = Arrays.copyOf(list, length * 2);
+        }
+        // Los tramos de un video se añaden seguidos (ver add), basta con
+        // comparar con el último para contar los videos
+        if (length == 0 || list[length - POSTING] != video)
+            videoCount[id]++;
+        list[length] = video;
+        list[length + 1] = frame;
+        list[length + 2] = start;
+        list[length + 3] = end;
+        postings[id] = list;
+        postingLength[id] = length + POSTING;
+        postingCount++;
+    }
+
+    /**
+     * <p>Elimina del índice todos los tramos de varios videos, recorriendo
+     * las huellas una sola vez.</p>
+     * <p>Las huellas que se quedan sin tramos se mantienen en la tabla, las
+     * busquedas simplemente no encuentran nada en ellas.</p>
+     * @param videoHashes Hashes de los videos
+     */
+    void removeAll(final Collection<String> videoHashes)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            final BitSet removed = new BitSet(videos.size());
+            for (String videoHash : videoHashes)
+            {
+                final Integer video = videoIds.remove(videoHash);
+                if (video != null)
+                {
+                    videos.set(video, null);
+                    removed.set(video);
+                }
+            }
+            if (removed.isEmpty())
+                return;
+
+            for (int id = 0; id < size; id++)
+            {
+                final int[] list = postings[id];
+                int length = 0;
+                int count = 0;
+                for (int i = 0; i < postingLength[id]; i += POSTING)
+                {
+                    if (!removed.get(list[i]))
+                    {
+                        // Los tramos de cada video están juntos
+                        if (length == 0 || list[length - POSTING] != list[i])
+                            count++;
+                        System.arraycopy(list, i, list, length, POSTING);
+                        length += POSTING;
+                    }
+                }
+                videoCount[id] = count;
+                postingCount -= (postingLength[id] - length) / POSTING;
+                postingLength[id] = length;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Busca los tramos cuya huella esta a una distancia de Hamming igual o
+     * menor que <code>radius</code>.
+     * @param query Huella buscada
+     * @param radius Distancia máxima de Hamming
+     * @param maxVariants Número máximo de valores de banda a buscar antes de
+     * recorrer todas las huellas
+     * @param matches Lista donde se añaden los resultados
+     * @param frequent Lista donde se añaden las huellas frecuentes de las que
+     * solo se ha devuelto una muestra
+     * @return Número de huellas distintas comprobadas
+     */
+    int search(final Fingerprint query
+             , final int radius
+             , final long maxVariants
+             , final List<DbManager.Match> matches
+             , final List<FrequentFingerprint> frequent)
+    {
+        final long[] q = new long[wordCount];
+        for (int i = 0; i < wordCount; i++)
+        {
+            q[i] = query.getWord(i);
+        }
+        final int[] bandRadius = mih.bandRadius(radius);
+        long variants = 0;
+        for (int band = 0; band < MultiIndexHash.BANDS; band++)
+        {
+            if (bandRadius[band] >= 0)
+                variants += Math.min(mih.countVariants(band, bandRadius[band]), maxVariants + 1);
+        }
+
+        lock.readLock().lock();
+        try
+        {
+            int checked = 0;
+            if (variants > maxVariants)
+            {
+                for (int id = 0; id < size; id++)
+                {
+                    check(id, q, radius, matches, frequent);
+                }
+                return size;
+            }
+
+            final BitSet seen = new BitSet(size);
+            for (int band = 0; band < MultiIndexHash.BANDS; band++)
+            {
+                for (long key : mih.variants(query, band, bandRadius[band]))
+                {
+                    int id = bandHeads[band][findSlot(bandKeys[band], bandHeads[band], key)];
+                    while (id != EMPTY)
+                    {
+                        if (!seen.get(id))
+                        {
+                            seen.set(id);
+                            check(id, q, radius, matches, frequent);
+                            checked++;
+                        }
+                        id = bandNext[band][id];
+                    }
+                }
+            }
+            return checked;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Devuelve una descripción del tamaño del índice.
+     * @return Descripción
+     */
+    @Override
+    public String toString()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size + " huellas, " + postingCount + " tramos, " + videoIds.size() + " videos";
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Comprueba la distancia de una huella y añade sus tramos si no supera
+     * el radio. De las huellas frecuentes solo se añade una muestra.
+     */
+    private void check(final int id
+                     , final long[] q
+                     , final int radius
+                     , final List<DbManager.Match> matches
+                     , final List<FrequentFingerprint> frequent)
+    {
+        if (postingLength[id] == 0)
+            return;
+
+        final int offset = id * wordCount;
+        int distance = 0;
+        for (int i = 0; i < wordCount && distance <= radius; i++)
+        {
+            distance += Long.bitCount(fingerprints[offset + i] ^ q[i]);
+        }
+        if (distance > radius)
+            return;
+
+        final int[] list = postings[id];
+        int step = POSTING;
+        if (maxVideos > 0 && videoCount[id] > maxVideos)
+        {
+            // Huella frecuente, reparto la muestra entre todos sus tramos
+            final int runs = postingLength[id] / POSTING;
+            step = POSTING * Math.max(1, runs / sample);
+            frequent.add(new FrequentFingerprint(Fingerprint.fromWords(Arrays.copyOfRange(fingerprints, offset, offset + wordCount), bits)
+                                               , videoCount[id]
+                                               , runs));
+        }
+        for (int i = 0; i < postingLength[id]; i += step)
+        {
+            final VideoEntry video = videos.get(list[i]);
+            matches.add(new DbManager.Match(video.hash, video.name, video.path, list[i + 1], list[i + 2], list[i + 3], distance));
+        }
+    }
+
+    /**
+     * Devuelve las huellas que aparecen en más videos que los indicados.
+     * @param maxVideos Número máximo de videos
+     * @return Huellas frecuentes
+     */
+    List<FrequentFingerprint> getFrequent(final int maxVideos)
+    {
+        lock.readLock().lock();
+        try
+        {
+            final List<FrequentFingerprint> frequent = new ArrayList<FrequentFingerprint>();
+            for (int id = 0; id < size; id++)
+            {
+                if (videoCount[id] > maxVideos)
+                {
+                    final int offset = id * wordCount;
+                    frequent.add(new FrequentFingerprint(Fingerprint.fromWords(Arrays.copyOfRange(fingerprints, offset, offset + wordCount), bits)
+                                                       , videoCount[id]
+                                                       , postingLength[id] / POSTING));
+                }
+            }
+            return frequent;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Devuelve el identificador local de un video, creandolo si no existe.
+     */
+    private int videoId(final String videoHash, final String videoName, final String videoPath)
+    {
+        Integer video = videoIds.get(videoHash);
+        if (video == null)
+        {
+            video = videos.size();
+            videos.add(new VideoEntry(videoHash, videoName, videoPath));
+            videoIds.put(videoHash, video);
+        }
+        return video;
+    }
+
+    /**
+     * Devuelve el identificador de una huella, añadiendola si no existe.
+     */
+    private int findOrInsert(final Fingerprint fingerprint)
+    {
+        final int mask = slots.length - 1;
+        int slot = hash(fingerprint) & mask;
+        while (slots[slot] != EMPTY)
+        {
+            if (sameFingerprint(slots[slot], fingerprint))
+                return slots[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == postingLength.length)
+        {
+            grow();
+            return findOrInsert(fingerprint);
+        }
+
+        final int id = size++;
+        slots[slot] = id;
+        for (int i = 0; i < wordCount; i++)
+        {
+            fingerprints[id * wordCount + i] = fingerprint.getWord(i);
+        }
+
+        // Encadeno la huella en cada banda
+        final long[] keys = mih.keys(fingerprint);
+        for (int band = 0; band < MultiIndexHash.BANDS; band++)
+        {
+            final int bandSlot = findSlot(bandKeys[band], bandHeads[band], keys[band]);
+            bandNext[band][id] = bandHeads[band][bandSlot];
+            bandKeys[band][bandSlot] = keys[band];
+            bandHeads[band][bandSlot] = id;
+        }
+        return id;
+    }
+
+    /**
+     * Duplica la capacidad de todas las tablas.
+     */
+    private void grow()
+    {
+        final int capacity = postingLength.length * 2;
+        fingerprints = Arrays.copyOf(fingerprints, capacity * wordCount);
+        postings = Arrays.copyOf(postings, capacity);
+        postingLength = Arrays.copyOf(postingLength, capacity);
+        videoCount = Arrays.copyOf(videoCount, capacity);
+
+        slots = newTable(capacity * 2);
+        final int mask = slots.length - 1;
+        for (int id = 0; id < size; id++)
+        {
+            int slot = hash(fingerprints, id * wordCount) & mask;
+            while (slots[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+
+        for (int band = 0; band < MultiIndexHash.BANDS; band++)
+        {
+            final long[] oldKeys = bandKeys[band];
+            final int[] oldHeads = bandHeads[band];
+            bandKeys[band] = new long[capacity * 2];
+            bandHeads[band] = newTable(capacity * 2);
+            bandNext[band] = Arrays.copyOf(bandNext[band], capacity);
+            for (int slot = 0; slot < oldHeads.length; slot++)
+            {
+                if (oldHeads[slot] != EMPTY)
+                {
+                    final int newSlot = findSlot(bandKeys[band], bandHeads[band], oldKeys[slot]);
+                    bandKeys[band][newSlot] = oldKeys[slot];
+                    bandHeads[band][newSlot] = oldHeads[slot];
+                }
+            }
+        }
+    }
+
+    /**
+     * Busca la posición de un valor de banda, o la posición libre donde
+     * debería ir.
+     */
+    private static int findSlot(final long[] keys, final int[] heads, final long key)
+    {
+        final int mask = heads.length - 1;
+        int slot = mix(key) & mask;
+        while (heads[slot] != EMPTY && keys[slot] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean sameFingerprint(final int id, final Fingerprint fingerprint)
+    {
+        final int offset = id * wordCount;
+        for (int i = 0; i < wordCount; i++)
+        {
+            if (fingerprints[offset + i] != fingerprint.getWord(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int hash(final Fingerprint fingerprint)
+    {
+        long hash = 0;
+        for (int i = 0; i < wordCount; i++)
+        {
+            hash = hash * 31 + fingerprint.getWord(i);
+        }
+        return mix(hash);
+    }
+
+    private int hash(final long[] data, final int offset)
+    {
+        long hash = 0;
+        for (int i = 0; i < wordCount; i++)
+        {
+            hash = hash * 31 + data[offset + i];
+        }
+        return mix(hash);
+    }
+
+    private static int mix(long value)
+    {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int)(value ^ (value >>> 33));
+    }
+
+    private static int[] newTable(final int length)
+    {
+        final int[] table = new int[length];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Datos de un video del índice.
+     */
+    private static class VideoEntry
+    {
+        private final String hash, name, path;
+
+        public VideoEntry(final String hash, final String name, final String path)
+        {
+            this.hash = hash;
+            this.name = name;
+            this.path = path;
+        }
+    }
+}
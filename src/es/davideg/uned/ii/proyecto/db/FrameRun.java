@@ -0,0 +1,193 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+import java.util.LinkedList;
+
+/**
+ * <p>Tramo de frames consecutivos de un video con la misma huella.</p>
+ * <p>En la tabla de imagenes se guarda una fila por tramo en lugar de una
+ * por frame: los frames de un mismo plano suelen tener la misma huella. Un
+ * tramo tiene como mucho <code>image.consecutive + 1</code> frames, que es
+ * lo que las busquedas agrupaban antes como un único resultado.</p>
+ * <p>De cada tramo se guarda el frame central como representante, que es el
+ * que se devuelve en las busquedas y se usa para refinar los resultados,
+ * junto con su vector de baja resolución. Como el frame central avanza a
+ * medida que crece el tramo, mientras el tramo está abierto se guardan
+ * también los vectores de los frames posteriores al central.</p>
+ * @author David Escribano García
+ */
+final class FrameRun
+{
+    private final Fingerprint fingerprint;
+    private final int first;
+    private int last;
+    private byte[] vector;
+    private LinkedList<byte[]> following;
+
+    /**
+     * Crea un tramo con un único frame.
+     * @param fingerprint Huella del frame
+     * @param frame Número de frame
+     */
+    FrameRun(final Fingerprint fingerprint, final int frame)
+    {
+        this(fingerprint, frame, frame);
+    }
+
+    /**
+     * Crea un tramo con un único frame y su vector de baja resolución.
+     * @param fingerprint Huella del frame
+     * @param frame Número de frame
+     * @param vector Vector del frame, si es nulo el tramo no guarda vectores
+     */
+    FrameRun(final Fingerprint fingerprint, final int frame, final byte[] vector)
+    {
+        this(fingerprint, frame, frame);
+        if (vector != null)
+        {
+            this.vector = vector;
+            this.following = new LinkedList<byte[]>();
+        }
+    }
+
+    /**
+     * Crea un tramo.
+     * @param fingerprint Huella de los frames
+     * @param first Primer frame
+     * @param last Último frame
+     */
+    FrameRun(final Fingerprint fingerprint, final int first, final int last)
+    {
+        this.fingerprint = fingerprint;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Intenta añadir al final del tramo el siguiente frame.
+     * @param fingerprint Huella del frame
+     * @param frame Número de frame
+     * @param maxLength Número máximo de frames del tramo
+     * @return Verdadero si se ha añadido, falso si el frame empieza otro tramo
+     */
+    boolean append(final Fingerprint fingerprint, final int frame, final int maxLength)
+    {
+        return append(fingerprint, frame, maxLength, null);
+    }
+
+    /**
+     * Intenta añadir al final del tramo el siguiente frame con su vector.
+     * @param fingerprint Huella del frame
+     * @param frame Número de frame
+     * @param maxLength Número máximo de frames del tramo
+     * @param vector Vector del frame
+     * @return Verdadero si se ha añadido, falso si el frame empieza otro tramo
+     */
+    boolean append(final Fingerprint fingerprint, final int frame, final int maxLength, final byte[] vector)
+    {
+        if (frame != last + 1
+            || frame - first >= maxLength
+            || !fingerprint.equals(this.fingerprint))
+            return false;
+
+        final int central = getFrameNumber();
+        last = frame;
+        if (following != null)
+        {
+            following.addLast(vector);
+            if (getFrameNumber() != central)
+                this.vector = following.removeFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Indica que el tramo no va a crecer más y ya no hacen falta los
+     * vectores de los frames posteriores al central.
+     */
+    void end()
+    {
+        following = null;
+    }
+
+    /**
+     * Libera el vector una vez guardado.
+     */
+    void clearVector()
+    {
+        vector = null;
+        following = null;
+    }
+
+    /**
+     * @return Huella de los frames del tramo
+     */
+    Fingerprint getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return Primer frame del tramo
+     */
+    int getFirst()
+    {
+        return first;
+    }
+
+    /**
+     * @return Último frame del tramo
+     */
+    int getLast()
+    {
+        return last;
+    }
+
+    /**
+     * @return Vector de baja resolución del frame que representa al tramo,
+     * o nulo si no se conoce
+     */
+    byte[] getVector()
+    {
+        return vector;
+    }
+
+    /**
+     * @return Frame que representa al tramo
+     */
+    int getFrameNumber()
+    {
+        return (first + last) >>> 1;
+    }
+
+    /**
+     * @return Número de frames del tramo
+     */
+    int getLength()
+    {
+        return last - first + 1;
+    }
+}
@@ -0,0 +1,140 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Papelera de los directorios de frames de los videos eliminados.</p>
+ * <p>Borrar los frames de un video uno a uno lleva mucho tiempo, así que
+ * al eliminar un video su directorio se mueve a la papelera
+ * (<code>.trash</code> dentro de <code>FRAMES_PATH</code>), que es
+ * inmediato, y se borra en segundo plano. Lo que quede en la papelera al
+ * cerrar la aplicación se borra la próxima vez que se vacie.</p>
+ * @author David Escribano García
+ */
+final class FrameTrash
+{
+    private static final String TRASH = ".trash";
+    private static final ExecutorService deleter = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread thread = new Thread(r, "FrameTrash");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File trash;
+    private static final Logger logger = Logger.getLogger(FrameTrash.class.getName());
+
+    /**
+     * Crea un objeto FrameTrash.
+     * @param framesPath Directorio de frames de la base de datos
+     */
+    FrameTrash(final File framesPath)
+    {
+        this.trash = new File(framesPath, TRASH);
+    }
+
+    /**
+     * Mueve un directorio o un almacén de frames a la papelera y programa su
+     * borrado. Si no se puede mover se borra en su sitio, también en segundo
+     * plano.
+     * @param directory Directorio o almacén de frames de un video
+     */
+    void discard(final File directory)
+    {
+        if (!directory.exists())
+            return;
+
+        final File target = new File(trash, directory.getName() + "-" + System.currentTimeMillis());
+        if ((trash.isDirectory() || trash.mkdirs()) && directory.renameTo(target))
+        {
+            schedule(target);
+        }
+        else
+        {
+            logger.log(Level.WARNING, "No se puede mover {0} a la papelera, se borra en su sitio", directory);
+            schedule(directory);
+        }
+    }
+
+    /**
+     * Programa el borrado de todo lo que haya en la papelera.
+     */
+    void empty()
+    {
+        final File[] files = trash.listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files)
+        {
+            schedule(f);
+        }
+    }
+
+    private static void schedule(final File file)
+    {
+        deleter.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long start = System.currentTimeMillis();
+                if (delete(file))
+                    logger.log(Level.FINE, "Borrado {0} en {1} ms", new Object[]{file, System.currentTimeMillis() - start});
+                else
+                    logger.log(Level.WARNING, "No se ha podido borrar {0}", file);
+            }
+        });
+    }
+
+    /**
+     * Borra un fichero o un directorio con todo su contenido.
+     * @param file Fichero o directorio
+     * @return Verdadero si se ha borrado, o si ya no existía
+     */
+    private static boolean delete(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+}
@@ -0,0 +1,86 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+
+/**
+ * <p>Huella que aparece en muchos videos de la base de datos, como las de
+ * los frames negros, los fundidos o las cartelas.</p>
+ * <p>Las huellas que superan <code>image.stoplist.videos</code> videos se
+ * guardan en la tabla <code>stoplist</code>. Al buscarlas solo se devuelve
+ * una muestra de <code>image.stoplist.sample</code> tramos de imagenes (ver
+ * <code>FrameRun</code>).</p>
+ * @see DbManager#getStopList()
+ * @author David Escribano García
+ */
+public final class FrequentFingerprint
+{
+    private final Fingerprint fingerprint;
+    private final int videoCount;
+    private final int imageCount;
+
+    /**
+     * Crea un nuevo FrequentFingerprint.
+     * @param fingerprint Huella
+     * @param videoCount Número de videos en los que aparece
+     * @param imageCount Número de tramos con la huella
+     */
+    FrequentFingerprint(final Fingerprint fingerprint, final int videoCount, final int imageCount)
+    {
+        this.fingerprint = fingerprint;
+        this.videoCount = videoCount;
+        this.imageCount = imageCount;
+    }
+
+    /**
+     * @return Huella
+     */
+    public Fingerprint getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return Número de videos en los que aparece la huella
+     */
+    public int getVideoCount()
+    {
+        return videoCount;
+    }
+
+    /**
+     * @return Número de tramos con la huella
+     */
+    public int getImageCount()
+    {
+        return imageCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return fingerprint + " (" + videoCount + " videos, " + imageCount + " tramos)";
+    }
+}
@@ -0,0 +1,219 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Divide las huellas en bandas para poder buscar huellas parecidas usando
+ * índices normales de la base de datos (multi-index hashing).</p>
+ * <p>La huella se parte en <code>BANDS</code> tramos consecutivos de bits y
+ * cada tramo se guarda en una columna indexada. Si dos huellas están a una
+ * distancia de Hamming <code>r</code> o menor, al menos una de sus bandas está
+ * a distancia <code>r / BANDS</code> o menor, por lo que basta con buscar en
+ * cada banda los valores que se obtienen cambiando hasta ese número de bits
+ * y comprobar después la distancia real de los candidatos.</p>
+ * <p>Las bandas de hasta 64 bits se guardan tal cual; las mayores se guardan
+ * como un resumen de 64 bits, que puede dar falsos candidatos pero nunca
+ * pierde resultados.</p>
+ * @author David Escribano García
+ */
+final class MultiIndexHash
+{
+    /**
+     * Número de bandas en que se divide cada huella
+     */
+    static final int BANDS = 4;
+
+    private final int bits;
+    private final int[] start = new int[BANDS];
+    private final int[] length = new int[BANDS];
+
+    /**
+     * Crea un objecto MultiIndexHash para huellas de un tamaño dado.
+     * @param bits Número de bits de las huellas
+     */
+    MultiIndexHash(final int bits)
+    {
+        if (bits < BANDS)
+            throw new IllegalArgumentException("Fingerprints must have at least " + BANDS + " bits");
+
+        this.bits = bits;
+        for (int i = 0; i < BANDS; i++)
+        {
+            start[i] = i * bits / BANDS;
+            length[i] = (i + 1) * bits / BANDS - start[i];
+        }
+    }
+
+    /**
+     * Devuelve el número de bits de las huellas.
+     * @return Número de bits
+     */
+    int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Calcula el valor de todas las bandas de una huella.
+     * @param fingerprint Huella
+     * @return Valor de cada banda
+     */
+    long[] keys(final Fingerprint fingerprint)
+    {
+        final long[] keys = new long[BANDS];
+        for (int i = 0; i < BANDS; i++)
+        {
+            keys[i] = key(band(fingerprint, i));
+        }
+        return keys;
+    }
+
+    /**
+     * <p>Calcula el radio con el que hay que buscar en cada banda para
+     * encontrar todas las huellas a una distancia dada.</p>
+     * <p>Con <code>r = BANDS * s + q</code>, las primeras <code>q + 1</code>
+     * bandas se buscan con radio <code>s</code> y el resto con radio
+     * <code>s - 1</code>: si todas las bandas superasen esos radios la
+     * distancia total sería al menos <code>r + 1</code>. Un radio negativo
+     * indica que no hace falta buscar en esa banda.</p>
+     * @param radius Distancia máxima de Hamming
+     * @return Radio de cada banda
+     */
+    int[] bandRadius(final int radius)
+    {
+        final int[] result = new int[BANDS];
+        final int s = radius / BANDS;
+        final int q = radius % BANDS;
+        for (int i = 0; i < BANDS; i++)
+        {
+            result[i] = (i <= q) ? s : s - 1;
+        }
+        return result;
+    }
+
+    /**
+     * Devuelve el número de valores distintos que hay que buscar en una banda
+     * con un radio dado.
+     * @param band Número de banda
+     * @param radius Radio de la banda
+     * @return Número de valores, o <code>Long.MAX_VALUE</code> si es demasiado grande
+     */
+    long countVariants(final int band, final int radius)
+    {
+        long total = 0;
+        long combinations = 1;
+        for (int k = 0; k <= radius && k <= length[band]; k++)
+        {
+            if (k > 0)
+            {
+                combinations = combinations * (length[band] - k + 1) / k;
+            }
+            total += combinations;
+            if (total < 0 || combinations < 0)
+                return Long.MAX_VALUE;
+        }
+        return total;
+    }
+
+    /**
+     * Obtiene los valores de una banda que estan a una distancia de Hamming
+     * igual o menor que <code>radius</code> de la banda de la huella.
+     * @param fingerprint Huella buscada
+     * @param band Número de banda
+     * @param radius Radio de la banda
+     * @return Valores de la banda a buscar en la base de datos
+     */
+    List<Long> variants(final Fingerprint fingerprint, final int band, final int radius)
+    {
+        final List<Long> result = new ArrayList<Long>();
+        if (radius < 0)
+            return result;
+
+        final long[] value = band(fingerprint, band);
+        result.add(key(value));
+        for (int k = 1; k <= radius && k <= length[band]; k++)
+        {
+            flip(value, band, 0, k, result);
+        }
+        return result;
+    }
+
+    /**
+     * Genera recursivamente todas las combinaciones de <code>k</code> bits
+     * cambiados a partir de la posición <code>from</code>.
+     */
+    private void flip(final long[] value, final int band, final int from, final int k, final List<Long> result)
+    {
+        for (int bit = from; bit <= length[band] - k; bit++)
+        {
+            final long mask = 1L << (63 - (bit & 63));
+            value[bit >>> 6] ^= mask;
+            if (k == 1)
+                result.add(key(value));
+            else
+                flip(value, band, bit + 1, k - 1, result);
+            value[bit >>> 6] ^= mask;
+        }
+    }
+
+    /**
+     * Extrae los bits de una banda en palabras alineadas a la izquierda.
+     * @param fingerprint Huella
+     * @param band Número de banda
+     * @return Palabras con los bits de la banda
+     */
+    private long[] band(final Fingerprint fingerprint, final int band)
+    {
+        final long[] value = new long[Fingerprint.wordCount(length[band])];
+        for (int i = 0; i < value.length; i++)
+        {
+            final int from = start[band] + (i << 6);
+            value[i] = fingerprint.extract(from, Math.min(64, length[band] - (i << 6)));
+        }
+        return value;
+    }
+
+    /**
+     * Calcula el valor que se guarda en la base de datos para una banda.
+     * @param value Palabras con los bits de la banda
+     * @return Valor de la banda
+     */
+    private static long key(final long[] value)
+    {
+        if (value.length == 1)
+            return value[0];
+
+        long hash = value.length;
+        for (long word : value)
+        {
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,218 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.db;
+
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.image.DatabaseImage;
+import es.davideg.uned.ii.proyecto.video.Video;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Escribe en la base de datos las imagenes de un video a medida que se
+ * van obteniendo.</p>
+ * <p>Los frames consecutivos con la misma huella se agrupan en tramos (ver
+ * <code>FrameRun</code>) y se guarda una fila por tramo. Como los frames
+ * pueden llegar desordenados si se filtran en varios threads, se ordenan en
+ * una ventana de <code>db.batch.size</code> frames antes de agruparlos.</p>
+ * <p>Los tramos se acumulan en memoria y se insertan en bloques de
+ * <code>db.batch.size</code> con una única sentencia preparada. Se hace
+ * commit cada <code>db.commit.interval</code> tramos para no mantener una
+ * transacción abierta durante toda la ingesta.</p>
+ * <p>El video se inserta al final, en la misma transacción que los últimos
+ * tramos: como las busquedas solo devuelven imagenes de videos existentes,
+ * el video aparece completo o no aparece. Si se abandona la escritura se
+ * borran los tramos que ya se hubiesen guardado.</p>
+ * <p>Los objetos de esta clase no se pueden compartir entre threads.</p>
+ * @see DbManager#createVideoWriter(Video)
+ * @author David Escribano García
+ */
+public class VideoWriter
+{
+    private final DbManager dbManager;
+    private final Video video;
+    private final int videoId;
+    private final int batchSize;
+    private final int commitInterval;
+    private final int maxRunLength;
+    private final TreeMap<Integer, DatabaseImage> reorder = new TreeMap<Integer, DatabaseImage>();
+    private final List<FrameRun> runs = new ArrayList<FrameRun>();
+    private final List<FrameRun> pending;
+    private FrameRun current = null;
+    private int nextFrame = 1;
+    private int frames = 0;
+    private int uncommitted = 0;
+    private int written = 0;
+    private boolean closed = false;
+    private static final Logger logger = Logger.getLogger(VideoWriter.class.getName());
+
+    /**
+     * Crea un nuevo VideoWriter.
+     * @param dbManager Base de datos
+     * @param video Video que se va a escribir
+     * @param videoId Identificador reservado para el video
+     */
+    VideoWriter(final DbManager dbManager, final Video video, final int videoId)
+    {
+        this.dbManager = dbManager;
+        this.video = video;
+        this.videoId = videoId;
+        this.batchSize = Math.max(1, ConfigurationManager.getIntProperty("db.batch.size", 500));
+        this.commitInterval = Math.max(batchSize, ConfigurationManager.getIntProperty("db.commit.interval", 10000));
+        this.maxRunLength = DbManager.getMaxRunLength();
+        this.pending = new ArrayList<FrameRun>(batchSize);
+    }
+
+    /**
+     * Añade una imagen del video.
+     * @param image Imagen procesada
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void add(final DatabaseImage image) throws ClassNotFoundException, SQLException
+    {
+        if (closed)
+            throw new IllegalStateException("VideoWriter already closed");
+
+        reorder.put(image.getFrameNumber(), image);
+        frames++;
+
+        // Agrupo los frames en orden, sin esperar indefinidamente a los que
+        // no llegan (frames que no se han podido filtrar)
+        while (!reorder.isEmpty()
+               && (reorder.firstKey() <= nextFrame || reorder.size() > batchSize))
+        {
+            append(reorder.remove(reorder.firstKey()));
+        }
+    }
+
+    /**
+     * Escribe las imagenes pendientes y el video, y confirma la transacción.
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void finish() throws ClassNotFoundException, SQLException
+    {
+        if (closed)
+            throw new IllegalStateException("VideoWriter already closed");
+
+        while (!reorder.isEmpty())
+        {
+            append(reorder.remove(reorder.firstKey()));
+        }
+        if (current != null)
+        {
+            current.end();
+            pending.add(current);
+            runs.add(current);
+            current = null;
+        }
+
+        // Si falla, abort() tiene que poder borrar lo que se haya insertado
+        dbManager.writeVideo(videoId, video, pending, runs);
+        closed = true;
+        written += pending.size();
+        clearPending();
+        logger.log(Level.FINE, "Video {0} escrito con {1} imagenes en {2} tramos", new Object[]{video.getName(), frames, written});
+    }
+
+    /**
+     * <p>Abandona la escritura borrando las imagenes que ya se habian
+     * escrito.</p>
+     * <p>Si ha fallado <code>finish()</code> puede haber imagenes del último
+     * bloque en la transacción abierta, así que el borrado se hace siempre
+     * y confirma la transacción.</p>
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    public void abort() throws ClassNotFoundException, SQLException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        reorder.clear();
+        clearPending();
+        runs.clear();
+        dbManager.discardImages(videoId);
+    }
+
+    /**
+     * Añade el siguiente frame al tramo actual, o cierra el tramo y empieza
+     * otro.
+     */
+    private void append(final DatabaseImage image) throws ClassNotFoundException, SQLException
+    {
+        final int frame = image.getFrameNumber();
+        nextFrame = frame + 1;
+
+        // El tramo se queda con el vector si le hace falta, la imagen ya no lo necesita
+        final byte[] vector = image.getVector();
+        image.setVector(null);
+        if (current != null && current.append(image.getWaveletValue(), frame, maxRunLength, vector))
+            return;
+
+        if (current != null)
+        {
+            current.end();
+            pending.add(current);
+            runs.add(current);
+            if (pending.size() >= batchSize)
+                flush();
+        }
+        current = new FrameRun(image.getWaveletValue(), frame, vector);
+    }
+
+    /**
+     * Inserta los tramos pendientes, haciendo commit si se ha llegado al
+     * intervalo indicado.
+     */
+    private void flush() throws ClassNotFoundException, SQLException
+    {
+        uncommitted += pending.size();
+        final boolean commit = uncommitted >= commitInterval;
+        dbManager.writeImages(videoId, pending, commit);
+        written += pending.size();
+        clearPending();
+        if (commit)
+            uncommitted = 0;
+    }
+
+    /**
+     * Vacia la lista de tramos pendientes liberando sus vectores, que ya
+     * están en la base de datos.
+     */
+    private void clearPending()
+    {
+        for (FrameRun run : pending)
+        {
+            run.clearVector();
+        }
+        pending.clear();
+    }
+}
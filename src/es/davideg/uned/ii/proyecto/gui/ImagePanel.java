@@ -22,6 +22,7 @@
 package es.davideg.uned.ii.proyecto.gui;
 
 import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.image.DatabaseImage;
 import es.davideg.uned.ii.proyecto.image.ImageComparation;
 import es.davideg.uned.ii.proyecto.image.filter.ResizeFilter;
 import es.davideg.uned.ii.proyecto.image.SearchedImage;
@@ -309,19 +310,18 @@ public class ImagePanel extends javax.swing.JPanel implements LocaleChangeListen
             final ImageTableModel itm = (ImageTableModel)imageTable.getModel();
             final int column = imageTable.getSelectedColumn();
             final int row = imageTable.convertRowIndexToModel(imageTable.getSelectedRow());
-            File file;
-
-            if (column == 0)
-            {
-                file = itm.getVideo(row).getFile();
-            }
-            else
-            {
-                file = itm.getImage(row).getFile();
-            }
             Desktop desktop = Desktop.getDesktop();
             try
             {
+                File file;
+                if (column == 0)
+                {
+                    file = itm.getVideo(row).getFile();
+                }
+                else
+                {
+                    file = itm.getImage(row).exportFile();
+                }
                 desktop.open(file);
             }
             catch (IOException ex)
@@ -366,7 +366,7 @@ public class ImagePanel extends javax.swing.JPanel implements LocaleChangeListen
         {
             final ImageTableModel model = (ImageTableModel)imageTable.getModel();
             final int sr = imageTable.convertRowIndexToModel(imageTable.getSelectedRow());
-            final File image = model.getImage(sr).getFile();
+            final File image = model.getImage(sr).exportFile();
             Desktop.getDesktop().open(image);
         }
         catch (IOException ex)
@@ -384,8 +384,15 @@ public class ImagePanel extends javax.swing.JPanel implements LocaleChangeListen
         {
             final ImageTableModel model = (ImageTableModel)imageTable.getModel();
             final int sr = imageTable.convertRowIndexToModel(imageTable.getSelectedRow());
-            final File image = model.getImage(sr).getFile();
-            final File folder = image.getParentFile();
+            final DatabaseImage image = model.getImage(sr);
+            // Si el frame no esta guardado abro la carpeta del video
+            final File folder;
+            if (image.getFrameStore() != null)
+                folder = image.getFrameStore().getFile().getParentFile();
+            else if (image.isExtracted())
+                folder = model.getVideo(sr).getFile().getParentFile();
+            else
+                folder = image.getFile().getParentFile();
             Desktop.getDesktop().open(folder);
         }
         catch (IOException ex)
@@ -512,6 +519,7 @@ public class ImagePanel extends javax.swing.JPanel implements LocaleChangeListen
             i++;
         }       
         itm.fireTableDataChanged();
+        itm.loadThumbnails(ROW_WIDTH, ROW_HEIGHT);
         lblFoundImagesTotal.setText("(" + String.valueOf(itm.getRowCount()) + ")");
 
         // Añado la lista de videos para filtrar
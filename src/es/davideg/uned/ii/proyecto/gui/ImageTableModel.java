@@ -27,9 +27,13 @@ import es.davideg.uned.ii.proyecto.image.filter.ResizeFilter;
 import es.davideg.uned.ii.proyecto.video.Video;
 import java.awt.Image;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.ImageIcon;
+import javax.swing.SwingWorker;
 import javax.swing.table.DefaultTableModel;
 
 /**
@@ -43,10 +47,14 @@ import javax.swing.table.DefaultTableModel;
  *          <li>image      : Representación grafica de la propia imagen</li>
  *      </ul>
  * </p>
+ * <p>Las imagenes que hay que obtener del video (ver
+ * <code>DatabaseImage.isExtracted()</code>) se añaden sin miniatura y se
+ * cargan después en segundo plano con <code>loadThumbnails</code>.</p>
  * @author David Escribano García
  */
 public class ImageTableModel extends DefaultTableModel
 {
+    private final List<Integer> pendingThumbnails = new ArrayList<Integer>();
     private static final Logger logger = Logger.getLogger(ImagePanel.class.getName());
     
     /**
@@ -77,21 +85,87 @@ public class ImageTableModel extends DefaultTableModel
         row[2] = itr.getImage().getFile().getName();
         row[3] = itr.getImage().getFrameNumber();
         row[4] = itr.getDifference();
-        final Image originalImage;
+        if (itr.getImage().isExtracted())
+        {
+            pendingThumbnails.add(getRowCount());
+            row[5] = null;
+        }
+        else
+        {
+            row[5] = createThumbnail(itr.getImage(), width, height);
+        }
+        super.addRow(row);
+    }
+
+    /**
+     * <p>Carga en segundo plano las miniaturas de las imagenes que hay que
+     * obtener del video.</p>
+     * <p>Se cargan en el orden de la tabla y cada una se muestra en cuanto
+     * está lista, así los primeros resultados se ven sin esperar al resto.</p>
+     * @param width Ancho para la imagen mostrada
+     * @param height Alto para la imagen mostrada
+     */
+    public void loadThumbnails(final int width, final int height)
+    {
+        if (pendingThumbnails.isEmpty())
+            return;
+
+        final List<Integer> rows = new ArrayList<Integer>(pendingThumbnails);
+        final List<DatabaseImage> images = new ArrayList<DatabaseImage>(rows.size());
+        for (int row : rows)
+        {
+            images.add(getImage(row));
+        }
+        pendingThumbnails.clear();
+
+        new SwingWorker<Void, Object[]>()
+        {
+            @Override
+            protected Void doInBackground()
+            {
+                for (int i = 0; i < rows.size(); i++)
+                {
+                    publish(new Object[]{rows.get(i), images.get(i), createThumbnail(images.get(i), width, height)});
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(final List<Object[]> chunks)
+            {
+                for (Object[] thumbnail : chunks)
+                {
+                    final int row = (Integer)thumbnail[0];
+                    // La tabla puede haber cambiado mientras se cargaba
+                    if (row < getRowCount() && getImage(row) == thumbnail[1])
+                        setValueAt(thumbnail[2], row, 5);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Crea la miniatura de una imagen.
+     * @param image Imagen
+     * @param width Ancho de la miniatura
+     * @param height Alto de la miniatura
+     * @return Miniatura, o nulo si no se puede leer la imagen
+     */
+    private static ImageIcon createThumbnail(final DatabaseImage image, final int width, final int height)
+    {
         try
         {
-            originalImage = itr.getImage().getImage();
+            final Image originalImage = image.getImage();
             ResizeFilter resize = new ResizeFilter();
             resize.setDimensions(width, height, true);
             final Image resizedImage = resize.filter(originalImage, null);
-            row[5] = new javax.swing.ImageIcon(resizedImage);
+            return new ImageIcon(resizedImage);
         }
         catch (IOException ex)
         {
             logger.log(Level.SEVERE, "No se puede procesar la imagen: {0}", ex.getMessage());
-            row[5] = null;
+            return null;
         }
-        super.addRow(row);
     }
 
     /**
@@ -75,7 +75,6 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
     private DbManager dbManager = new DbManager();
     private static final Logger logger = Logger.getLogger(MainForm.class.getName());
     private final Dimension FILECHOOSER_DIMENSION = new Dimension(800, 500);
-    private boolean AM_I_PROCESSING = false;
     private VideoTask videoTask;
     private ImageTask imageTask;
     
@@ -534,9 +533,12 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
     {
         try
         {
-            // Abro la base de datos y recargo la lista de videos
+            // Abro la base de datos, la actualizo si es de una version
+            // anterior y recargo la lista de videos
             dbManager.setConnectionString(f);
+            dbManager.upgradeDb();
             reloadVideoList();
+            loadIndex();
 
             // Establezco el titulo de la ventana
             ResourceBundle bundle = ResourceBundle.getBundle("configuration/language");
@@ -558,6 +560,94 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
         }
     }
 
+    /**
+     * Carga en segundo plano el filtro y el índice de huellas de la base de
+     * datos abierta, y después recupera el espacio libre que hubiese quedado
+     * pendiente.
+     */
+    private void loadIndex()
+    {
+        final DbManager db = dbManager;
+        Thread loader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    db.loadFilter();
+                }
+                catch (Exception ex)
+                {
+                    logger.log(Level.WARNING, "No se ha podido cargar el filtro de huellas: {0}", ex.getMessage());
+                }
+                try
+                {
+                    db.loadIndex();
+                }
+                catch (Exception ex)
+                {
+                    logger.log(Level.WARNING, "No se ha podido cargar el indice de huellas: {0}", ex.getMessage());
+                }
+                reclaimSpace(db);
+            }
+        }, "FingerprintIndex");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Mantenimiento en segundo plano después de añadir o eliminar videos:
+     * recalcula el filtro de huellas, para ajustar su tamaño, y la lista de
+     * huellas frecuentes, y recupera el espacio libre de la base de datos.
+     */
+    private void maintainDb()
+    {
+        final DbManager db = dbManager;
+        Thread builder = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    db.rebuildFilter();
+                }
+                catch (Exception ex)
+                {
+                    logger.log(Level.WARNING, "No se ha podido calcular el filtro de huellas: {0}", ex.getMessage());
+                }
+                try
+                {
+                    db.rebuildStopList();
+                }
+                catch (Exception ex)
+                {
+                    logger.log(Level.WARNING, "No se han podido calcular las huellas frecuentes: {0}", ex.getMessage());
+                }
+                reclaimSpace(db);
+            }
+        }, "DbMaintenance");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Recupera el espacio libre de la base de datos sin propagar errores.
+     * @param db Base de datos
+     */
+    private static void reclaimSpace(final DbManager db)
+    {
+        try
+        {
+            db.reclaimSpace();
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "No se ha podido recuperar el espacio libre: {0}", ex.getMessage());
+        }
+    }
+
     /**
      * Recarga la lista de videos.
      * @throws SQLException
@@ -567,7 +657,7 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
     {
         try
         {
-            dbManager.disconnect();
+            panelVideos.setVideos(dbManager.getVideoList());
         }
         catch (SQLException ex)
         {
@@ -575,7 +665,21 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
             logger.log(Level.INFO, "Excepcion: {0}", ex.getMessage());
             throw ex;
         }
-        panelVideos.setVideos(dbManager.getVideoList());
+    }
+
+    /**
+     * Cierra la conexión con la base de datos al salir de la aplicación.
+     */
+    private void closeDb()
+    {
+        try
+        {
+            dbManager.disconnect();
+        }
+        catch (SQLException ex)
+        {
+            logger.log(Level.SEVERE, "No se ha podido desconectar de la base de datos: {0}", ex.getMessage());
+        }
     }
 
     /**
@@ -597,7 +701,7 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
     {
         if (VideoPanel.EVENT_CLICK.equals(evt.getPropertyName()))
         {
-            if (!AM_I_PROCESSING)
+            if (!isRunning(videoTask) && !isRunning(imageTask))
                 enableControls();
         }
     }
@@ -716,7 +820,7 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
         {
             imageSearch(fc.getSelectedFile());
         }
-        enableControls();
+        restoreControls();
     }//GEN-LAST:event_menuImageSearchActionPerformed
 
     /**
@@ -787,6 +891,7 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
         {
             logger.log(Level.SEVERE, "No se puede guardar la configuracion: {0}", ex.getMessage());
         }
+        closeDb();
     }//GEN-LAST:event_formWindowClosing
 
     private void menuImageActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuImageActionPerformed
@@ -825,6 +930,7 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
 
     private void menuExitActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_menuExitActionPerformed
     {//GEN-HEADEREND:event_menuExitActionPerformed
+        closeDb();
         System.exit(0);
     }//GEN-LAST:event_menuExitActionPerformed
 
@@ -837,8 +943,14 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
      * @param evt 
      */
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
-        if (imageTask != null)
+        // Si hay una busqueda durante el procesado de videos solo se cancela
+        // la busqueda
+        if (isRunning(imageTask))
+        {
             imageTask.cancel(true);
+            if (isRunning(videoTask))
+                return;
+        }
         if (videoTask != null)
             videoTask.cancel(true);
         cancelButton.setEnabled(false);
@@ -923,6 +1035,42 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
         }
     }
 
+    /**
+     * <p>Habilita los controles en función de las tareas que se esten
+     * ejecutando.</p>
+     * <p>Mientras se procesan videos se puede lanzar una busqueda, que se
+     * hace sobre los videos ya confirmados en la base de datos. Mientras dura
+     * la busqueda no se puede lanzar otra.</p>
+     */
+    private void restoreControls()
+    {
+        if (isRunning(videoTask) || isRunning(imageTask))
+        {
+            disableControls();
+            mainToolBar.setEnabled(true);
+            cancelButton.setEnabled(true);
+
+            final boolean search = isRunning(videoTask) && !isRunning(imageTask);
+            searchButton.setEnabled(search);
+            menuImage.setEnabled(search);
+            menuImageSearch.setEnabled(search);
+        }
+        else
+        {
+            enableControls();
+        }
+    }
+
+    /**
+     * Indica si una tarea se esta ejecutando.
+     * @param task Tarea, puede ser nula
+     * @return Verdadero si la tarea ha empezado y no ha terminado
+     */
+    private static boolean isRunning(final SwingWorker<?, ?> task)
+    {
+        return task != null && task.getState() == SwingWorker.StateValue.STARTED;
+    }
+
     /**
      * <p>Deshabilita todos los controles del formulario.</p>
      * <p>Se debe llamar cuando se va a realizar algún proceso durante el cual
@@ -1031,6 +1179,16 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
             this.task = task;
         }
 
+        /**
+         * Indica si la tarea es una busqueda lanzada mientras se procesan
+         * videos, en ese caso no se muestra su progreso.
+         * @return Verdadero si la tarea no controla la barra de estado
+         */
+        private boolean isBackground()
+        {
+            return task instanceof ImageTask && isRunning(videoTask);
+        }
+
         /**
          * <p>Se ejecuta cuando una propiedad cambia.</p>
          * <p>Realiza las actualizaciones apropiedas en la interfaz en función
@@ -1046,11 +1204,9 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
 
                 if (state.equals(SwingWorker.StateValue.STARTED))
                 {
-                    disableControls();
-                    mainToolBar.setEnabled(true);
-                    cancelButton.setEnabled(true);
-                    progressBar.setValue(0);
-                    AM_I_PROCESSING = true;
+                    restoreControls();
+                    if (!isBackground())
+                        progressBar.setValue(0);
                 }
                 else if(state.equals(SwingWorker.StateValue.DONE))
                 {
@@ -1059,10 +1215,13 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
                     else if (task instanceof ImageTask)
                         done((ImageTask)task);
 
-                    AM_I_PROCESSING = false;
                     task = null;
                 }
             }
+            else if (isBackground())
+            {
+                // La barra de estado muestra el progreso del procesado de videos
+            }
             else if ("progress".equals(evt.getPropertyName()))
             {
                 final int progress = (Integer)evt.getNewValue();
@@ -1109,10 +1268,15 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
                 JOptionPane.showMessageDialog(null, errorMessage, bundle.getString("error.processing_0"), JOptionPane.ERROR_MESSAGE);
 
             // Habilito los controles
-            enableControls();
+            restoreControls();
             progressBar.setValue(0);
             progressBar.setString("");
 
+            // Recalculo el filtro y las huellas frecuentes con los videos
+            // nuevos y recupero el espacio de los eliminados
+            if (!task.isCancelled())
+                maintainDb();
+
             // Recargo la lista de videos
             try { reloadVideoList(); }
             catch (SQLException ex)
@@ -1156,9 +1320,13 @@ public final class MainForm extends javax.swing.JFrame implements PropertyChange
                 
 
             // Habilito los controles
-            enableControls();
-            progressBar.setValue(0);
-            progressBar.setString("");
+            final boolean background = isBackground();
+            restoreControls();
+            if (!background)
+            {
+                progressBar.setValue(0);
+                progressBar.setString("");
+            }
         }
     }
 
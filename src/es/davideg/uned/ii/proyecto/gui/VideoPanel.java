@@ -344,7 +344,9 @@ public class VideoPanel extends javax.swing.JPanel implements LocaleChangeListen
     {//GEN-HEADEREND:event_menuOpenImagesActionPerformed
         VideoTableModel model = (VideoTableModel)videoTable.getModel();
         Video video = model.getVideo(videoTable.getSelectedRow());
-        openFolder(video.getFramesDir());
+        // Si los frames estan en un almacen no hay directorio, abro el que lo contiene
+        File framesDir = video.getFramesDir();
+        openFolder(framesDir.isDirectory() ? framesDir : framesDir.getParentFile());
     }//GEN-LAST:event_menuOpenImagesActionPerformed
 
     /**
@@ -0,0 +1,116 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+
+package es.davideg.uned.ii.proyecto.image;
+
+import es.davideg.uned.ii.proyecto.video.Video;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.Vector;
+
+/**
+ * <p>Guarda los mejores resultados de una comparación de imágenes.</p>
+ * <p>Solo se conservan los <code>maxResults</code> resultados con menor
+ * diferencia, en un montículo cuya cima es el peor de ellos, y se descartan
+ * directamente los que superan <code>maxDifference</code>. Así la memoria y
+ * el coste de ordenar no dependen del número de imágenes comparadas.</p>
+ * <p>Los métodos de esta clase estan sincronizados para poder añadir
+ * resultados desde varios threads.</p>
+ * @author David Escribano García
+ */
+public class ComparationRanking
+{
+    private final int maxResults;
+    private final long maxDifference;
+    private final PriorityQueue<ImageComparation> heap;
+    private long compared = 0;
+
+    /**
+     * Crea un ranking vacio.
+     * @param maxResults Número máximo de resultados que se guardan
+     * @param maxDifference Diferencia máxima admitida
+     */
+    public ComparationRanking(final int maxResults, final long maxDifference)
+    {
+        this.maxResults = Math.max(1, maxResults);
+        this.maxDifference = maxDifference;
+        this.heap = new PriorityQueue<ImageComparation>(this.maxResults, Collections.reverseOrder(new ImageComparation()));
+    }
+
+    /**
+     * Añade un resultado si esta entre los mejores.
+     * @param video Video al que pertenece la imagen
+     * @param image Imagen comparada
+     * @param difference Diferencia con la imagen buscada
+     * @return Verdadero si el resultado se ha guardado
+     */
+    public synchronized boolean offer(final Video video, final DatabaseImage image, final long difference)
+    {
+        compared++;
+        if (difference > maxDifference)
+            return false;
+
+        if (heap.size() == maxResults)
+        {
+            if (difference >= heap.peek().getDifference())
+                return false;
+            heap.poll();
+        }
+        heap.add(new ImageComparation(video, image, difference));
+        return true;
+    }
+
+    /**
+     * <p>Devuelve la mayor diferencia con la que una imagen todavía podría
+     * entrar en el ranking.</p>
+     * <p>Mientras el ranking no esta lleno es <code>maxDifference</code>,
+     * después es algo menos que la diferencia del peor resultado guardado.</p>
+     * @return Diferencia máxima útil
+     */
+    public synchronized long getThreshold()
+    {
+        if (heap.size() < maxResults)
+            return maxDifference;
+        return Math.min(maxDifference, heap.peek().getDifference() - 1);
+    }
+
+    /**
+     * Devuelve el número de imágenes que se han ofrecido al ranking.
+     * @return Número de imágenes comparadas
+     */
+    public synchronized long getCompared()
+    {
+        return compared;
+    }
+
+    /**
+     * Devuelve los resultados ordenados de menor a mayor diferencia.
+     * @return Resultados
+     */
+    public synchronized Vector<ImageComparation> getResults()
+    {
+        Vector<ImageComparation> results = new Vector<ImageComparation>(heap);
+        Collections.sort(results, new ImageComparation());
+        return results;
+    }
+}
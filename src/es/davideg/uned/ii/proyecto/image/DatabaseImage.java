@@ -22,10 +22,11 @@
 
 package es.davideg.uned.ii.proyecto.image;
 
+import es.davideg.uned.ii.proyecto.video.FrameExtractor;
+import es.davideg.uned.ii.proyecto.video.FrameStore;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import javax.imageio.ImageIO;
 
 /**
@@ -36,22 +37,43 @@ public class DatabaseImage
 {
     private File file;
     private int frameNumber;
-    private BigInteger waveletValue;
+    private Fingerprint waveletValue;
+    private FrameStore frameStore;
+    private FrameExtractor frameExtractor;
+    private byte[] vector;
+    private int distance = -1;
     
     /**
      * Crea una nueva imagen.
      * @param file Fichero que representa la imagen
      * @param frame Numero de frame que la imagen ocupa dentro de un video
-     * @param waveletValue Valor numerico de la imagen
+     * @param waveletValue Huella de la imagen
      */
     public DatabaseImage(final File file
                        , final int frame
-                       , final BigInteger waveletValue)
+                       , final Fingerprint waveletValue)
     {
         this.file = file;
         this.frameNumber = frame;
         this.waveletValue = waveletValue;
     }
+
+    /**
+     * Crea una nueva imagen guardada en el almacén de frames de un video.
+     * @param file Fichero que representaría la imagen si se guardase como bmp
+     * @param frame Numero de frame que la imagen ocupa dentro de un video
+     * @param waveletValue Huella de la imagen
+     * @param frameStore Almacén de frames del video, si es nulo la imagen
+     * se lee de <code>file</code>
+     */
+    public DatabaseImage(final File file
+                       , final int frame
+                       , final Fingerprint waveletValue
+                       , final FrameStore frameStore)
+    {
+        this(file, frame, waveletValue);
+        this.frameStore = frameStore;
+    }
     
     /**
      * Devuelve el fichero al que hace referencia la imagen.
@@ -78,16 +100,113 @@ public class DatabaseImage
      */
     public BufferedImage getImage() throws IOException
     {
+        if (frameStore != null)
+            return frameStore.getImage(frameNumber);
+        if (frameExtractor != null)
+            return frameExtractor.getImage(frameNumber);
         return ImageIO.read(file);
     }
+
+    /**
+     * Devuelve el vector de baja resolución de la imagen.
+     * @return Pixeles del vector, o nulo si no se conoce
+     * @see PixelVector
+     */
+    public byte[] getVector()
+    {
+        return vector;
+    }
+
+    /**
+     * Establece el vector de baja resolución de la imagen.
+     * @param vector Pixeles del vector, puede ser nulo
+     */
+    public void setVector(final byte[] vector)
+    {
+        this.vector = vector;
+    }
+
+    /**
+     * Devuelve el almacén de frames donde está la imagen.
+     * @return Almacén de frames, o nulo si la imagen es un fichero
+     */
+    public FrameStore getFrameStore()
+    {
+        return frameStore;
+    }
+
+    /**
+     * Devuelve el objeto que obtiene la imagen del video cuando sus frames
+     * no se han guardado.
+     * @return Extractor de frames, o nulo si la imagen está guardada
+     */
+    public FrameExtractor getFrameExtractor()
+    {
+        return frameExtractor;
+    }
+
+    /**
+     * Establece el objeto que obtiene la imagen del video.
+     * @param frameExtractor Extractor de frames, puede ser nulo
+     */
+    public void setFrameExtractor(final FrameExtractor frameExtractor)
+    {
+        this.frameExtractor = frameExtractor;
+    }
+
+    /**
+     * Indica si la imagen hay que obtenerla del video, lo que puede tardar.
+     * @return Verdadero si la imagen no está guardada en disco
+     */
+    public boolean isExtracted()
+    {
+        return frameStore == null && frameExtractor != null;
+    }
+
+    /**
+     * Devuelve un fichero con la imagen que se pueda abrir con otras
+     * aplicaciones. Si la imagen está en un almacén de frames o hay que
+     * obtenerla del video se guarda en un fichero bmp temporal, que se borra
+     * al cerrar la aplicación.
+     * @return Fichero con la imagen
+     * @throws IOException Si no se puede exportar la imagen
+     */
+    public File exportFile() throws IOException
+    {
+        if (frameStore == null && frameExtractor == null)
+            return file;
+
+        final File target = File.createTempFile(file.getParentFile().getName() + "-" + frameNumber + "-", ".bmp");
+        target.deleteOnExit();
+        ImageIO.write(getImage(), "bmp", target);
+        return target;
+    }
     
     /**
      * Devuelve el valor de la wavelet correspondiente.
      * @return Valor de la wavelet
      */
-    public BigInteger getWaveletValue()
+    public Fingerprint getWaveletValue()
     {
         return waveletValue;
     }
-    
+
+    /**
+     * Devuelve la distancia de Hamming entre la huella de la imagen y la de
+     * la imagen buscada.
+     * @return Distancia, o -1 si la imagen no es resultado de una busqueda
+     */
+    public int getDistance()
+    {
+        return distance;
+    }
+
+    /**
+     * Establece la distancia de Hamming con la imagen buscada.
+     * @param distance Distancia
+     */
+    public void setDistance(final int distance)
+    {
+        this.distance = distance;
+    }
 }
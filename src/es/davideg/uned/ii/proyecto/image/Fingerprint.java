@@ -0,0 +1,287 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.image;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>Valor numerico que representa una imagen (huella de la imagen).</p>
+ * <p>Cada pixel de la wavelet umbralizada aporta un bit, empezando por el
+ * pixel superior izquierdo, que es el bit más significativo. Los bits se
+ * empaquetan en un array de <code>long</code> de forma que el bit
+ * <code>i</code> ocupa la posición <code>63 - (i % 64)</code> de la palabra
+ * <code>i / 64</code>. Los bits sobrantes de la última palabra valen 0.</p>
+ * <p>Los objetos de esta clase son inmutables.</p>
+ * @author David Escribano García
+ */
+public final class Fingerprint
+{
+    private final long[] words;
+    private final int bits;
+
+    /**
+     * Crea una huella a partir de sus palabras, sin copiarlas.
+     * @param words Palabras con los bits de la huella
+     * @param bits Número de bits de la huella
+     */
+    private Fingerprint(final long[] words, final int bits)
+    {
+        this.words = words;
+        this.bits = bits;
+    }
+
+    /**
+     * Devuelve el número de palabras necesarias para guardar una huella.
+     * @param bits Número de bits de la huella
+     * @return Número de palabras
+     */
+    public static int wordCount(final int bits)
+    {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Crea una huella a partir de los bits ya empaquetados.
+     * @param words Palabras con los bits de la huella, se copian
+     * @param bits Número de bits de la huella
+     * @return Huella
+     */
+    public static Fingerprint fromWords(final long[] words, final int bits)
+    {
+        return new Fingerprint(Arrays.copyOf(words, wordCount(bits)), bits);
+    }
+
+    /**
+     * <p>Crea una huella a partir de los pixeles de una imagen umbralizada.</p>
+     * <p>Los pixeles con valor máximo (<code>-1</code> como byte) son un 1,
+     * el resto son un 0.</p>
+     * @param pixels Pixeles de la imagen umbralizada
+     * @param length Número de pixeles a usar
+     * @return Huella
+     */
+    public static Fingerprint fromPixels(final byte[] pixels, final int length)
+    {
+        final long[] words = new long[wordCount(length)];
+        for (int i = 0; i < length; i++)
+        {
+            if (pixels[i] == -1)
+                words[i >>> 6] |= 1L << (63 - (i & 63));
+        }
+        return new Fingerprint(words, length);
+    }
+
+    /**
+     * Crea una huella a partir de su representación en bytes.
+     * @param data Bytes obtenidos con <code>toBytes</code>
+     * @param bits Número de bits de la huella
+     * @return Huella
+     * @see #toBytes()
+     */
+    public static Fingerprint fromBytes(final byte[] data, final int bits)
+    {
+        final long[] words = new long[wordCount(bits)];
+        final int length = (bits + 7) >>> 3;
+        for (int i = 0; i < length; i++)
+        {
+            words[i >>> 3] |= (data[i] & 0xffL) << (56 - ((i & 7) << 3));
+        }
+        return new Fingerprint(words, bits);
+    }
+
+    /**
+     * Crea una huella a partir de su representación en bytes, suponiendo que
+     * todos los bits de los bytes forman parte de la huella.
+     * @param data Bytes obtenidos con <code>toBytes</code>
+     * @return Huella
+     */
+    public static Fingerprint fromBytes(final byte[] data)
+    {
+        return fromBytes(data, data.length << 3);
+    }
+
+    /**
+     * Crea una huella a partir del valor entero que se obtenía en versiones
+     * anteriores de la aplicación.
+     * @param value Valor entero de la huella
+     * @param bits Número de bits de la huella
+     * @return Huella
+     * @see #toBigInteger()
+     */
+    public static Fingerprint fromBigInteger(final BigInteger value, final int bits)
+    {
+        final int length = (bits + 7) >>> 3;
+        final byte[] raw = value.shiftLeft((length << 3) - bits).toByteArray();
+
+        // Alineo a la derecha quitando el byte de signo si lo hay
+        final byte[] data = new byte[length];
+        final int copy = Math.min(raw.length, length);
+        System.arraycopy(raw, raw.length - copy, data, length - copy, copy);
+        return fromBytes(data, bits);
+    }
+
+    /**
+     * Devuelve el número de bits de la huella.
+     * @return Número de bits
+     */
+    public int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Devuelve el número de palabras de la huella.
+     * @return Número de palabras
+     */
+    public int getWordCount()
+    {
+        return words.length;
+    }
+
+    /**
+     * Devuelve una de las palabras de la huella.
+     * @param index Posición de la palabra
+     * @return Palabra
+     */
+    public long getWord(final int index)
+    {
+        return words[index];
+    }
+
+    /**
+     * Devuelve el valor de un bit de la huella.
+     * @param index Posición del bit, el 0 corresponde al pixel superior izquierdo
+     * @return Verdadero si el bit vale 1
+     */
+    public boolean getBit(final int index)
+    {
+        return (words[index >>> 6] & (1L << (63 - (index & 63)))) != 0;
+    }
+
+    /**
+     * Devuelve un tramo de bits consecutivos de la huella alineado a la
+     * izquierda, es decir, el bit <code>from</code> queda en la posición 63
+     * del resultado.
+     * @param from Posición del primer bit
+     * @param length Número de bits, entre 1 y 64
+     * @return Bits del tramo, el resto de posiciones valen 0
+     */
+    public long extract(final int from, final int length)
+    {
+        final int word = from >>> 6;
+        final int offset = from & 63;
+        long value = words[word] << offset;
+        if (offset != 0 && offset + length > 64)
+            value |= words[word + 1] >>> (64 - offset);
+        return length == 64 ? value : value & (-1L << (64 - length));
+    }
+
+    /**
+     * <p>Calcula la distancia de Hamming con otra huella, es decir, el
+     * número de bits diferentes.</p>
+     * <p>Si las huellas tienen distinto número de bits solo se comparan las
+     * palabras comunes y cada bit que sobra cuenta como diferente.</p>
+     * @param other Huella con la que se compara
+     * @return Distancia de Hamming
+     */
+    public int distance(final Fingerprint other)
+    {
+        final long[] a = this.words;
+        final long[] b = other.words;
+        final int common = Math.min(a.length, b.length);
+        int distance = 0;
+        for (int i = 0; i < common; i++)
+        {
+            distance += Long.bitCount(a[i] ^ b[i]);
+        }
+        return distance + Math.abs(this.bits - other.bits);
+    }
+
+    /**
+     * Devuelve la representación compacta de la huella: <code>(bits + 7) / 8</code>
+     * bytes empezando por el bit más significativo.
+     * @return Bytes de la huella
+     */
+    public byte[] toBytes()
+    {
+        final int length = (bits + 7) >>> 3;
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte)(words[i >>> 3] >>> (56 - ((i & 7) << 3)));
+        }
+        return data;
+    }
+
+    /**
+     * Devuelve el valor entero de la huella tal y como se calculaba en
+     * versiones anteriores de la aplicación.
+     * @return Valor entero de la huella
+     */
+    public BigInteger toBigInteger()
+    {
+        final int length = (bits + 7) >>> 3;
+        return new BigInteger(1, toBytes()).shiftRight((length << 3) - bits);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof Fingerprint))
+            return false;
+
+        final Fingerprint other = (Fingerprint)obj;
+        return this.bits == other.bits && Arrays.equals(this.words, other.words);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long hash = bits;
+        for (long word : words)
+        {
+            hash = hash * 0x9E3779B97F4A7C15L + word;
+        }
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Devuelve la huella en hexadecimal.
+     * @return Cadena hexadecimal
+     */
+    @Override
+    public String toString()
+    {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final byte[] data = toBytes();
+        final char[] text = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++)
+        {
+            text[2 * i]     = digits[(data[i] >>> 4) & 0xf];
+            text[2 * i + 1] = digits[data[i] & 0xf];
+        }
+        return new String(text);
+    }
+}
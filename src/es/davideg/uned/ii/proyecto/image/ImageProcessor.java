@@ -22,14 +22,11 @@
 
 package es.davideg.uned.ii.proyecto.image;
 
-import es.davideg.uned.ii.proyecto.image.filter.HaarFilter;
-import es.davideg.uned.ii.proyecto.image.filter.NumericFilter;
-import es.davideg.uned.ii.proyecto.image.filter.ThresholdFilter;
+import es.davideg.uned.ii.proyecto.image.filter.FingerprintKernel;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.util.Vector;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -41,24 +38,35 @@ import javax.imageio.ImageIO;
 public class ImageProcessor implements Runnable
 {
     private File file;
+    private byte[] pixels;
+    private int imageWidth, imageHeight;
     private int width, height;
     private int frame;
-    private Vector<DatabaseImage> images;
+    private List<DatabaseImage> images;
+    private DatabaseImage result;
     private static final Logger logger = Logger.getLogger(ImageProcessor.class.getName());
 
+    /**
+     * Kernel y buffer de palabras de cada thread, se reutilizan entre frames
+     * mientras no cambien las dimensiones.
+     */
+    private static final ThreadLocal<FingerprintKernel> kernels = new ThreadLocal<FingerprintKernel>();
+    private static final ThreadLocal<long[]> words = new ThreadLocal<long[]>();
+
     /**
      * Crea un objecto ImageProcessor.
      * @param file Fichero que contiene la imagen
      * @param frame Número de frame que corresponde a la imagen dentro del vídeo
      * @param width Ancho de la wavelet
      * @param height Alto de la wavelet
-     * @param images Vector donde se añadira la imagen
+     * @param images Lista sincronizada donde se añadira la imagen, o nula
+     * si solo se necesita <code>getResult()</code>
      */
     public ImageProcessor(final File file
                         , final int frame
                         , final int width
                         , final int height
-                        , Vector<DatabaseImage> images)
+                        , List<DatabaseImage> images)
     {
         this.file = file;
         this.width = width;
@@ -67,44 +75,126 @@ public class ImageProcessor implements Runnable
         this.images = images;
     }
 
+    /**
+     * <p>Crea un objecto ImageProcessor a partir de los pixeles de un frame
+     * que ya esta en memoria.</p>
+     * <p>Si se indica un fichero el frame se guarda en el disco como
+     * imagen bmp, ya que el refinamiento de las busquedas necesita poder
+     * leer el frame original.</p>
+     * @param pixels Pixeles en escala de grises del frame
+     * @param imageWidth Ancho del frame
+     * @param imageHeight Alto del frame
+     * @param file Fichero donde se guardará el frame, puede ser nulo
+     * @param frame Número de frame que corresponde a la imagen dentro del vídeo
+     * @param width Ancho de la wavelet
+     * @param height Alto de la wavelet
+     * @param images Lista sincronizada donde se añadira la imagen, o nula
+     * si solo se necesita <code>getResult()</code>
+     */
+    public ImageProcessor(final byte[] pixels
+                        , final int imageWidth
+                        , final int imageHeight
+                        , final File file
+                        , final int frame
+                        , final int width
+                        , final int height
+                        , List<DatabaseImage> images)
+    {
+        this(file, frame, width, height, images);
+        this.pixels = pixels;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+    }
+
     /**
      * <p>Procesa una imagen y la añade al vector <code>images</code></p>
      * <p>La imagen procesada ya debe estar redimensionada al tamaño adecuado
      * y tiene que ser una imagen en blanco y negro. En este punto se realiza
      * el siguiente proceso:
      * <ul>
-     *      <li>Generar una imagen wavelet de Haar a partir de la imagen original</li>
-     *      <li>Umbralizar la imagen wavelet</li>
-     *      <li>Generar un valor numerico a partir de la imagen umbralizada</li>
+     *      <li>Generar la wavelet de Haar a partir de la imagen original</li>
+     *      <li>Umbralizar la wavelet</li>
+     *      <li>Generar un valor numerico a partir de la wavelet umbralizada</li>
      *      <li>Usando el valor numerico se crea un ojbecto <code>DatabaseImage
      *      </code> y se añade a <code>images</code>
-     * </ul></p>
+     * </ul>
+     * También se calcula el vector de baja resolución de la imagen, con el
+     * que se refinan las busquedas.</p>
      */
     @Override
     public void run()
     {
         try
         {
-            // Aplico filtro haar
-            HaarFilter haar = new HaarFilter(width, height);
-            BufferedImage image = haar.filter(ImageIO.read(file), null);
+            // Obtengo el frame, de memoria si esta disponible o del disco
+            byte[] data = pixels;
+            int dataWidth = imageWidth;
+            int dataHeight = imageHeight;
+            if (data != null)
+            {
+                if (file != null)
+                {
+                    BufferedImage source = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_BYTE_GRAY);
+                    GraphicsUtilities.setPixels(source, 0, 0, imageWidth, imageHeight, pixels);
+                    ImageIO.write(source, "bmp", file);
+                }
+            }
+            else
+            {
+                BufferedImage source = ImageIO.read(file);
+                if (source.getType() != BufferedImage.TYPE_BYTE_GRAY)
+                    throw new IOException("Image must be of TYPE_BYTE_GRAY type");
+                dataWidth = source.getWidth();
+                dataHeight = source.getHeight();
+                data = GraphicsUtilities.getPixels(source, 0, 0, dataWidth, dataHeight, (byte[])null);
+            }
 
-            // Aplico umbral
-            ThresholdFilter threshold = new ThresholdFilter();
-            threshold.filter(image, image);
+            // Calculo la huella (haar, umbral y valor numerico en una pasada)
+            FingerprintKernel kernel = getKernel(dataWidth, dataHeight);
+            long[] buffer = words.get();
+            kernel.compute(data, buffer);
+            Fingerprint waveletValue = Fingerprint.fromWords(buffer, kernel.getBits());
 
-            // Me quedo con el resultado numerico
-            NumericFilter numericFilter = new NumericFilter();
-            BigInteger waveletValue = numericFilter.filter(image);
-            
             // Añado la imagen
             DatabaseImage dbimage = new DatabaseImage(file, frame, waveletValue);
-            images.add(dbimage);
+            dbimage.setVector(PixelVector.fromPixels(data, dataWidth, dataHeight));
+            if (images != null)
+                images.add(dbimage);
+            result = dbimage;
         }
         catch (IOException ex)
         {
-            logger.log(Level.SEVERE, "No se puede procesar la imagen {0}: {1}", new String[] {file.getName(), ex.getMessage()});
+            logger.log(Level.SEVERE, "No se puede procesar la imagen {0}: {1}", new Object[] {frame, ex.getMessage()});
         }
         
     }
+
+    /**
+     * Devuelve la imagen procesada.
+     * @return Imagen añadida a <code>images</code>, o nula si no se ha
+     * procesado o ha habido un error
+     */
+    public DatabaseImage getResult()
+    {
+        return result;
+    }
+
+    /**
+     * Devuelve el kernel del thread actual, creandolo si no existe o si las
+     * dimensiones no coinciden con las del último frame procesado.
+     * @param dataWidth Ancho del frame
+     * @param dataHeight Alto del frame
+     * @return Kernel para calcular la huella
+     */
+    private FingerprintKernel getKernel(final int dataWidth, final int dataHeight)
+    {
+        FingerprintKernel kernel = kernels.get();
+        if (kernel == null || !kernel.accepts(dataWidth, dataHeight, width, height))
+        {
+            kernel = new FingerprintKernel(dataWidth, dataHeight, width, height);
+            kernels.set(kernel);
+            words.set(new long[Fingerprint.wordCount(kernel.getBits())]);
+        }
+        return kernel;
+    }
 }
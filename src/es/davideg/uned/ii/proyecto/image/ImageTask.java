@@ -22,17 +22,32 @@
 
 package es.davideg.uned.ii.proyecto.image;
 
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
 import es.davideg.uned.ii.proyecto.db.DbManager;
+import es.davideg.uned.ii.proyecto.db.DbSettings;
 import es.davideg.uned.ii.proyecto.image.filter.CompareFilter;
+import es.davideg.uned.ii.proyecto.video.FrameStore;
 import es.davideg.uned.ii.proyecto.video.Video;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Queue;
 import java.util.ResourceBundle;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingWorker;
@@ -54,6 +69,19 @@ public class ImageTask extends SwingWorker<Boolean, Object>
     private final ResourceBundle bundle = ResourceBundle.getBundle("configuration/language");
     private static final Logger logger = Logger.getLogger(ImageTask.class.getName());
 
+    // Imagenes por bloque y milisegundos entre actualizaciones del progreso
+    private static final int CHUNK_SIZE = 32;
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final Comparator<DatabaseImage> BY_FRAME = new Comparator<DatabaseImage>()
+    {
+        @Override
+        public int compare(final DatabaseImage i1, final DatabaseImage i2)
+        {
+            return i1.getFrameNumber() - i2.getFrameNumber();
+        }
+    };
+
     /**
      * Crea un nuevo objecto ImageTask
      * @param dbManager Base de datos donde se buscarán las imágenes
@@ -83,10 +111,11 @@ public class ImageTask extends SwingWorker<Boolean, Object>
             Date now;
 
             // Obtengo los tamaños de las imagenes y de la wavelet
-            final int IMAGE_WIDTH = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.IMAGE_SIZE_X));
-            final int IMAGE_HEIGHT = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.IMAGE_SIZE_Y));
-            final int WAVELET_WIDTH = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.HAAR_SIZE_X));
-            final int WAVELET_HEIGHT = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.HAAR_SIZE_Y));
+            final DbSettings settings = dbManager.getSettings();
+            final int IMAGE_WIDTH = settings.getImageWidth();
+            final int IMAGE_HEIGHT = settings.getImageHeight();
+            final int WAVELET_WIDTH = settings.getHaarWidth();
+            final int WAVELET_HEIGHT = settings.getHaarHeight();
 
             // Creo la imagen
             image = new SearchedImage(imageFile, IMAGE_WIDTH, IMAGE_HEIGHT);
@@ -101,7 +130,8 @@ public class ImageTask extends SwingWorker<Boolean, Object>
             if (this.isCancelled()) return true;
 
             // Busco la imagen en base de datos
-            final List<Video> videos = dbManager.searchImage(image);
+            final int maxDistance = ConfigurationManager.getIntProperty("image.maxdistance", 3);
+            final List<Video> videos = dbManager.searchImage(image, maxDistance);
             timeSearchDb += new Date().getTime() - now.getTime();
             now = new Date();
             setProgress(10);
@@ -138,6 +168,17 @@ public class ImageTask extends SwingWorker<Boolean, Object>
     /**
      * <p>Realiza una comparación pixel a pixel de la imagen recibida como primer
      * parametro con todas las imágenes recibidas en la lista de vídeos.</p>
+     * <p>Solo se devuelven los <code>image.maxresults</code> resultados más
+     * parecidos que no superen <code>image.maxdiff</code>.</p>
+     * <p>Las imágenes se reparten en bloques que los threads de
+     * <code>system.thread.search</code> van cogiendo de una cola común, así
+     * ningún thread se queda parado mientras queden bloques. Si se cancela la
+     * tarea se interrumpen todos los threads y se devuelve lo encontrado
+     * hasta ese momento.</p>
+     * <p>Las imágenes que tienen vector de baja resolución se comparan con
+     * el vector de la imagen buscada y la diferencia se escala al tamaño de
+     * los frames (ver <code>PixelVector</code>), sin leer ningún frame. Las
+     * de bases de datos anteriores se comparan con sus frames.</p>
      * @param image Imagen a comparar
      * @param videos Videos con imagenes a comparar
      * @return Restulado de la comparación
@@ -145,33 +186,133 @@ public class ImageTask extends SwingWorker<Boolean, Object>
      */
     private Vector<ImageComparation> compare(final SearchedImage image, final List<Video> videos) throws IOException
     {
-        Vector<ImageComparation> source = new Vector<ImageComparation>();
+        final ComparationRanking ranking = new ComparationRanking(ConfigurationManager.getIntProperty("image.maxresults", 1000)
+                                                                , ConfigurationManager.getLongProperty("image.maxdiff", 5000000L));
         if (videos == null || videos.isEmpty())
-            return source;
-
-        long contador = 0;
-        final int video_step = (int)Math.floor(90 / videos.size());
-        final CompareFilter cf = new CompareFilter(image.getImage());
+            return ranking.getResults();
 
+        // Divido las imagenes en bloques
+        final Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+        int total = 0;
         for (Video video : videos)
         {
-            if (this.isCancelled()) return source;
+            // En orden de frame, los frames cercanos de un almacén de frames
+            // comparten el frame clave y las páginas del fichero
+            final List<DatabaseImage> images = new ArrayList<DatabaseImage>(video.getImages());
+            Collections.sort(images, BY_FRAME);
+            for (int from = 0; from < images.size(); from += CHUNK_SIZE)
+            {
+                chunks.add(new Chunk(video, images.subList(from, Math.min(images.size(), from + CHUNK_SIZE)), from == 0));
+            }
+            total += images.size();
+        }
+        if (chunks.isEmpty())
+            return ranking.getResults();
+
+        final BufferedImage query = image.getImage();
+        final CompareFilter cf = new CompareFilter(query);
+        final byte[] queryVector = PixelVector.fromPixels(GraphicsUtilities.getPixels(query, 0, 0, query.getWidth(), query.getHeight(), (byte[])null)
+                                                          , query.getWidth()
+                                                          , query.getHeight());
+        final CompareFilter vcf = new CompareFilter(queryVector, PixelVector.getWidth(query.getWidth(), query.getHeight()));
+        final long scale = PixelVector.getScale(query.getWidth(), query.getHeight());
+        final AtomicInteger processed = new AtomicInteger(0);
+        final int threads = Math.max(1, Math.min(getSearchThreads(), chunks.size()));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threads; i++)
+        {
+            workers.add(pool.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    Chunk chunk;
+                    while ((chunk = chunks.poll()) != null)
+                    {
+                        if (chunk.first)
+                        {
+                            setMessage(MessageFormat.format(bundle.getString("processing.image.video")
+                                                          , chunk.video.getName()));
+                        }
+                        for (DatabaseImage currentImage : chunk.images)
+                        {
+                            if (isCancelled() || Thread.currentThread().isInterrupted())
+                                return null;
+
+                            // Dejo de comparar en cuanto no puede entrar en el ranking
+                            final long difference;
+                            final byte[] vector = currentImage.getVector();
+                            final FrameStore store = currentImage.getFrameStore();
+                            if (vector != null && vector.length == queryVector.length)
+                            {
+                                difference = vcf.compare(vector, ranking.getThreshold() / scale) * scale;
+                            }
+                            else if (store != null)
+                            {
+                                // Comparo directamente con el frame del almacén, sin copiarlo
+                                difference = cf.compare(store.getFrame(currentImage.getFrameNumber()), ranking.getThreshold());
+                            }
+                            else
+                            {
+                                final BufferedImage candidate = currentImage.getImage();
+                                final byte[] pixels = GraphicsUtilities.getPixels(candidate, 0, 0, candidate.getWidth(), candidate.getHeight(), (byte[])null);
+                                difference = cf.compare(pixels, ranking.getThreshold());
+                            }
+                            ranking.offer(chunk.video, currentImage, difference);
+                            processed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
 
-            final String message = MessageFormat.format(bundle.getString("processing.image.video")
-                                                     , video.getName());
-            setMessage(message);
-            List<DatabaseImage> images = video.getImages();
-            for(DatabaseImage currentImage : images)
+        // Espero a que terminen informando del progreso
+        try
+        {
+            while (!pool.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+            {
+                if (isCancelled())
+                {
+                    pool.shutdownNow();
+                    return ranking.getResults();
+                }
+                setProgress(10 + (int)(89L * processed.get() / total));
+            }
+            for (Future<Void> worker : workers)
             {
-                logger.log(Level.INFO, "Procesando imagen {0}", contador++);
-                Long difference = cf.compare(currentImage.getImage());
-                source.add(new ImageComparation(video, currentImage, difference));
+                worker.get();
             }
-            setProgress(getProgress() + video_step);
         }
-        Collections.sort(source, new ImageComparation());
+        catch (InterruptedException ex)
+        {
+            logger.log(Level.INFO, "Busqueda cancelada tras comparar {0} imagenes", processed.get());
+            pool.shutdownNow();
+            return ranking.getResults();
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException)ex.getCause();
+            throw new IOException(ex.getCause().getMessage());
+        }
 
-        return source;
+        logger.log(Level.INFO, "Comparadas {0} imagenes con {1} threads", new Object[]{processed.get(), threads});
+        return ranking.getResults();
+    }
+
+    /**
+     * Obtiene el número de threads que se usarán para comparar las imágenes.
+     * Si no se indica en <code>system.thread.search</code> se usa un thread
+     * por procesador.
+     * @return Número de threads
+     */
+    private static int getSearchThreads()
+    {
+        final int threads = ConfigurationManager.getIntProperty("system.thread.search", 0);
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
     }
 
     /**
@@ -201,4 +342,21 @@ public class ImageTask extends SwingWorker<Boolean, Object>
     {
         firePropertyChange("message", null, message);
     }
+
+    /**
+     * Bloque de imágenes de un video que se comparan en un mismo thread.
+     */
+    private static class Chunk
+    {
+        private final Video video;
+        private final List<DatabaseImage> images;
+        private final boolean first;
+
+        public Chunk(final Video video, final List<DatabaseImage> images, final boolean first)
+        {
+            this.video = video;
+            this.images = images;
+            this.first = first;
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.image;
+
+import java.util.Arrays;
+
+/**
+ * <p>Vector de pixeles de baja resolución de un frame.</p>
+ * <p>Es un nivel de la pirámide de la transformada de Haar: en cada nivel
+ * cada pixel es la media de un bloque de 2x2 pixeles del nivel anterior,
+ * igual que las medias que calcula <code>HaarFilter</code>, y se baja de
+ * nivel hasta que ni el ancho ni el alto superan <code>MAX_SIDE</code>.
+ * Con frames de 64x64 el vector tiene 32x32 bytes.</p>
+ * <p>Se guarda junto a la huella de cada imagen para poder refinar las
+ * busquedas sin leer los frames: la suma de diferencias entre dos vectores
+ * multiplicada por <code>getScale</code> es una estimación de la suma de
+ * diferencias entre los frames completos.</p>
+ * @see es.davideg.uned.ii.proyecto.image.filter.HaarFilter
+ * @author David Escribano García
+ */
+public final class PixelVector
+{
+    /**
+     * Número máximo de pixeles de ancho y de alto del vector.
+     */
+    public static final int MAX_SIDE = 32;
+
+    private PixelVector()
+    {
+    }
+
+    /**
+     * Devuelve el número de niveles de la pirámide que hay que bajar.
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     * @return Número de niveles
+     */
+    public static int getLevels(final int width, final int height)
+    {
+        int levels = 0;
+        int currentWidth = width;
+        int currentHeight = height;
+        while ((currentWidth > MAX_SIDE || currentHeight > MAX_SIDE) && currentWidth >= 2 && currentHeight >= 2)
+        {
+            currentWidth = currentWidth >> 1;
+            currentHeight = currentHeight >> 1;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Devuelve el ancho del vector.
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     * @return Ancho del vector
+     */
+    public static int getWidth(final int width, final int height)
+    {
+        return width >> getLevels(width, height);
+    }
+
+    /**
+     * Devuelve el número de pixeles del frame que representa cada pixel
+     * del vector.
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     * @return Número de pixeles por cada pixel del vector
+     */
+    public static long getScale(final int width, final int height)
+    {
+        return 1L << (2 * getLevels(width, height));
+    }
+
+    /**
+     * Calcula el vector de un frame.
+     * @param pixels Pixeles del frame en escala de grises, no se modifican
+     * @param width Ancho del frame
+     * @param height Alto del frame
+     * @return Pixeles del vector
+     */
+    public static byte[] fromPixels(final byte[] pixels, final int width, final int height)
+    {
+        final int levels = getLevels(width, height);
+        if (levels == 0)
+            return Arrays.copyOf(pixels, width * height);
+
+        byte[] current = pixels;
+        int currentWidth = width;
+        int currentHeight = height;
+        for (int level = 0; level < levels; level++)
+        {
+            final int nextWidth = currentWidth >> 1;
+            final int nextHeight = currentHeight >> 1;
+            final byte[] next = new byte[nextWidth * nextHeight];
+            int posicion = 0;
+            for (int fila = 0; fila < nextHeight; fila++)
+            {
+                final int row1 = 2 * fila * currentWidth;
+                final int row2 = row1 + currentWidth;
+                for (int columna = 0; columna < nextWidth; columna++)
+                {
+                    final int x = 2 * columna;
+                    next[posicion++] = (byte)(((current[row1 + x] & 0xff)
+                                             + (current[row1 + x + 1] & 0xff)
+                                             + (current[row2 + x] & 0xff)
+                                             + (current[row2 + x + 1] & 0xff)) >> 2);
+                }
+            }
+            current = next;
+            currentWidth = nextWidth;
+            currentHeight = nextHeight;
+        }
+        return current;
+    }
+}
@@ -22,15 +22,14 @@
 
 package es.davideg.uned.ii.proyecto.image;
 
+import es.davideg.uned.ii.proyecto.image.filter.FingerprintKernel;
 import es.davideg.uned.ii.proyecto.image.filter.HaarFilter;
 import es.davideg.uned.ii.proyecto.image.filter.ResizeFilter;
 import es.davideg.uned.ii.proyecto.image.filter.GrayscaleFilter;
-import es.davideg.uned.ii.proyecto.image.filter.NumericFilter;
 import es.davideg.uned.ii.proyecto.image.filter.ThresholdFilter;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import javax.imageio.ImageIO;
 
 /**
@@ -42,7 +41,7 @@ public class SearchedImage
     private File imageFile;
     private BufferedImage originalImage;
     private BufferedImage waveletImage;
-    private BigInteger waveletValue;
+    private Fingerprint waveletValue;
     
     /**
      * Crea un nuevo objecto SearchedImage.
@@ -97,7 +96,7 @@ public class SearchedImage
      * Devuelve el valor numerico que representa la imagen.
      * @return Valor numerico de la wavelet
      */
-    public BigInteger getWaveletValue()
+    public Fingerprint getWaveletValue()
     {
         return this.waveletValue;
     }
@@ -113,12 +112,13 @@ public class SearchedImage
         HaarFilter haar = new HaarFilter(w, h);
         BufferedImage image = haar.filter(originalImage, null);
 
-        // Aplico umbral
+        // Aplico umbral, solo para mostrar la wavelet
         ThresholdFilter threshold = new ThresholdFilter();
         waveletImage = threshold.filter(image, null);
 
-        // Me quedo con el resultado numerico
-        NumericFilter numericFilter = new NumericFilter();
-        waveletValue = numericFilter.filter(waveletImage);
+        // La huella se calcula igual que al procesar los videos
+        FingerprintKernel kernel = new FingerprintKernel(originalImage.getWidth(), originalImage.getHeight(), w, h);
+        byte[] pixels = GraphicsUtilities.getPixels(originalImage, 0, 0, originalImage.getWidth(), originalImage.getHeight(), (byte[])null);
+        waveletValue = kernel.fingerprint(pixels);
     }
 }
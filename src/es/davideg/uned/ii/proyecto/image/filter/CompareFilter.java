@@ -24,6 +24,7 @@ package es.davideg.uned.ii.proyecto.image.filter;
 
 import es.davideg.uned.ii.proyecto.image.GraphicsUtilities;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 
 /**
  * <p>Clase para la comparación de dos imagenes pixel a pixel
@@ -32,7 +33,14 @@ import java.awt.image.BufferedImage;
  */
 public class CompareFilter
 {
+    /**
+     * Número de filas que se comparan entre cada comprobación de la suma
+     */
+    private static final int ROW_BLOCK = 8;
+
     private byte[] data1;
+    private int blockSize;
+
     /**
      * Crea un objecto CompareFilter
      * @param img Imagen que va a ser comparada con otras imagenes
@@ -40,6 +48,19 @@ public class CompareFilter
     public CompareFilter(final BufferedImage img)
     {
         this.data1 = GraphicsUtilities.getPixels(img, 0, 0, img.getWidth(), img.getHeight(), (byte[])null);
+        this.blockSize = Math.max(1, img.getWidth() * ROW_BLOCK);
+    }
+
+    /**
+     * Crea un objecto CompareFilter a partir de los pixeles de una imagen.
+     * @param pixels Pixeles en escala de grises de la imagen que va a ser
+     * comparada con otras imagenes, no se copian
+     * @param width Ancho de la imagen
+     */
+    public CompareFilter(final byte[] pixels, final int width)
+    {
+        this.data1 = pixels;
+        this.blockSize = Math.max(1, width * ROW_BLOCK);
     }
     
     /**
@@ -52,21 +73,89 @@ public class CompareFilter
      */
     public long compare(final BufferedImage img)
     {
-        long compare = 0;
         final byte[] data2 = GraphicsUtilities.getPixels(img, 0, 0, img.getWidth(), img.getHeight(), (byte[])null);
-        
-        final int len = data1.length > data2.length ? data1.length : data2.length;
-        byte pixel1, pixel2;
-        
-        for(int i = 0; i < len; i++)
+        return compare(data2, Long.MAX_VALUE);
+    }
+
+    /**
+     * <p>Compara la imagen usada en la creación del objecto con los pixeles
+     * recibidos como parametro.<br />
+     * Se compara pixel a pixel y se suman las diferencias en valor absoluto.
+     * Si una imagen tiene más pixeles que la otra, los que sobran se comparan
+     * con 0.</p>
+     * <p>La suma se comprueba cada pocas filas y si ya supera
+     * <code>abortAbove</code> se deja de comparar: en ese caso el resultado es
+     * la suma parcial, que es mayor que <code>abortAbove</code> pero no es la
+     * diferencia real.</p>
+     * @param data2 Pixeles en escala de grises de la imagen a comparar
+     * @param abortAbove Diferencia a partir de la cual no interesa el resultado
+     * @return Diferencia entre las imagenes, o un valor mayor que
+     * <code>abortAbove</code> si se ha abandonado la comparación
+     */
+    public long compare(final byte[] data2, final long abortAbove)
+    {
+        long compare = 0;
+        final int common = Math.min(data1.length, data2.length);
+
+        for (int block = 0; block < common; block += blockSize)
         {
-            try { pixel1 = data1[i]; }
-            catch (ArrayIndexOutOfBoundsException ex) { pixel1 = 0; }
-            
-            try { pixel2 = data2[i]; }
-            catch (ArrayIndexOutOfBoundsException ex) { pixel2 = 0; }
+            final int end = Math.min(common, block + blockSize);
+            for (int i = block; i < end; i++)
+            {
+                compare += Math.abs(data1[i] - data2[i]);
+            }
+            if (compare > abortAbove)
+                return compare;
+        }
 
-            compare += Math.abs(pixel1 - pixel2);
+        // Pixeles que solo tiene una de las imagenes
+        final byte[] longest = data1.length > data2.length ? data1 : data2;
+        for (int i = common; i < longest.length; i++)
+        {
+            compare += Math.abs(longest[i]);
+        }
+        return compare;
+    }
+
+    /**
+     * <p>Compara la imagen usada en la creación del objecto con los pixeles
+     * que quedan en un buffer, igual que <code>compare(byte[], long)</code>.</p>
+     * <p>Sirve para comparar directamente con un frame de un almacén de
+     * frames sin copiarlo. Solo se usan los métodos de lectura con posición,
+     * así que no cambia el estado del buffer.</p>
+     * @param data2 Buffer con los pixeles en escala de grises de la imagen a
+     * comparar, entre su posición y su límite
+     * @param abortAbove Diferencia a partir de la cual no interesa el resultado
+     * @return Diferencia entre las imagenes, o un valor mayor que
+     * <code>abortAbove</code> si se ha abandonado la comparación
+     * @see #compare(byte[], long)
+     */
+    public long compare(final ByteBuffer data2, final long abortAbove)
+    {
+        long compare = 0;
+        final int offset = data2.position();
+        final int length = data2.remaining();
+        final int common = Math.min(data1.length, length);
+
+        for (int block = 0; block < common; block += blockSize)
+        {
+            final int end = Math.min(common, block + blockSize);
+            for (int i = block; i < end; i++)
+            {
+                compare += Math.abs(data1[i] - data2.get(offset + i));
+            }
+            if (compare > abortAbove)
+                return compare;
+        }
+
+        // Pixeles que solo tiene una de las imagenes
+        for (int i = common; i < data1.length; i++)
+        {
+            compare += Math.abs(data1[i]);
+        }
+        for (int i = common; i < length; i++)
+        {
+            compare += Math.abs(data2.get(offset + i));
         }
         return compare;
     }
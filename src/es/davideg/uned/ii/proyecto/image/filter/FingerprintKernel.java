@@ -0,0 +1,221 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.image.filter;
+
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
+import java.util.Arrays;
+
+/**
+ * <p>Calcula la huella de un frame en una sola pasada.</p>
+ * <p>Obtiene el mismo resultado que aplicar consecutivamente
+ * <code>HaarFilter</code>, <code>ThresholdFilter</code> y
+ * <code>NumericFilter</code>, pero trabajando directamente sobre el array de
+ * pixeles en escala de grises: las medias de cada iteración de la
+ * transformada de Haar se guardan en un buffer interno que se reutiliza entre
+ * frames, y en la última iteración cada media se umbraliza y se empaqueta
+ * como bit de la huella sin llegar a guardarse.</p>
+ * <p>Los filtros originales se siguen usando para mostrar la wavelet en
+ * pantalla.</p>
+ * <p>Los objetos de esta clase no se pueden compartir entre threads.</p>
+ * @see HaarFilter
+ * @see ThresholdFilter
+ * @see NumericFilter
+ * @author David Escribano García
+ */
+public class FingerprintKernel
+{
+    private final int imageWidth, imageHeight;
+    private final int width, height;
+    private final int iterations;
+    private final int bits;
+    private final boolean copySource;
+    private final byte[] scratch;
+    private int threshold = 128;
+
+    /**
+     * Crea un objecto FingerprintKernel.
+     * @param imageWidth Ancho de los frames
+     * @param imageHeight Alto de los frames
+     * @param width Ancho de la wavelet
+     * @param height Alto de la wavelet
+     */
+    public FingerprintKernel(final int imageWidth, final int imageHeight, final int width, final int height)
+    {
+        if (width * height > imageWidth * imageHeight)
+            throw new IllegalArgumentException("Wavelet must not be bigger than the image");
+
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.width = width;
+        this.height = height;
+        this.bits = width * height;
+        this.iterations = HaarFilter.calculateIterations(imageWidth, imageHeight, width, height);
+
+        // Si la ultima iteracion genera menos valores que bits tiene la huella,
+        // HaarFilter completa la huella con lo que quedase en su copia de los
+        // pixeles. Solo en ese caso hace falta copiar el frame al buffer.
+        int currentWidth = imageWidth;
+        int currentHeight = imageHeight;
+        int produced = imageWidth * imageHeight;
+        for (int i = 0; i < iterations; i++)
+        {
+            produced = (currentWidth >> 1) * (currentHeight >> 1);
+            currentWidth = currentWidth >> 1;
+            currentHeight = currentHeight >> 1;
+        }
+        this.copySource = iterations > 0 && produced < bits;
+        this.scratch = new byte[copySource ? imageWidth * imageHeight : (imageWidth >> 1) * (imageHeight >> 1)];
+    }
+
+    /**
+     * Establece el valor del umbral.
+     * @param threshold Nuevo valor del umbral
+     */
+    public void setThreshold(final int threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Devuelve el número de bits de las huellas generadas.
+     * @return Número de bits
+     */
+    public int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Indica si el kernel sirve para las dimensiones dadas.
+     * @param imageWidth Ancho de los frames
+     * @param imageHeight Alto de los frames
+     * @param width Ancho de la wavelet
+     * @param height Alto de la wavelet
+     * @return Verdadero si el kernel se creo con esas dimensiones
+     */
+    public boolean accepts(final int imageWidth, final int imageHeight, final int width, final int height)
+    {
+        return this.imageWidth == imageWidth && this.imageHeight == imageHeight
+            && this.width == width && this.height == height;
+    }
+
+    /**
+     * <p>Calcula la huella de un frame.</p>
+     * @param pixels Pixeles del frame en escala de grises, no se modifican
+     * @param out Array donde se escriben las palabras de la huella, debe tener
+     * al menos <code>Fingerprint.wordCount(getBits())</code> elementos
+     */
+    public void compute(final byte[] pixels, final long[] out)
+    {
+        if (pixels.length < imageWidth * imageHeight)
+            throw new IllegalArgumentException("pixels array must have a length >= imageWidth*imageHeight");
+
+        Arrays.fill(out, 0, Fingerprint.wordCount(bits), 0L);
+
+        if (iterations == 0)
+        {
+            pack(pixels, 0, out);
+            return;
+        }
+
+        byte[] src = pixels;
+        if (copySource)
+        {
+            System.arraycopy(pixels, 0, scratch, 0, imageWidth * imageHeight);
+            src = scratch;
+        }
+
+        int currentWidth = imageWidth;
+        int currentHeight = imageHeight;
+        for (int i = 0; i < iterations; i++)
+        {
+            final boolean last = (i == iterations - 1);
+            int posicion = 0;
+
+            filas:
+            for (int fila = 1; fila < currentHeight; fila += 2)
+            {
+                final int row1 = (fila - 1) * currentWidth;
+                final int row2 = fila * currentWidth;
+                for (int columna = 1; columna < currentWidth; columna += 2)
+                {
+                    final int media = ((src[row1 + columna - 1] & 0xff)
+                                     + (src[row1 + columna] & 0xff)
+                                     + (src[row2 + columna - 1] & 0xff)
+                                     + (src[row2 + columna] & 0xff)) >> 2;
+                    if (last)
+                    {
+                        // Umbralizo y empaqueto sin guardar la media
+                        if (posicion == bits)
+                            break filas;
+                        if (media >= threshold)
+                            out[posicion >>> 6] |= 1L << (63 - (posicion & 63));
+                    }
+                    else
+                    {
+                        scratch[posicion] = (byte)media;
+                    }
+                    posicion++;
+                }
+            }
+
+            if (last && posicion < bits)
+            {
+                // La wavelet es mayor que la ultima iteracion, el resto de
+                // bits salen de lo que queda en el buffer
+                pack(src, posicion, out);
+            }
+
+            src = scratch;
+            currentWidth = currentWidth >> 1;
+            currentHeight = currentHeight >> 1;
+        }
+    }
+
+    /**
+     * Calcula la huella de un frame.
+     * @param pixels Pixeles del frame en escala de grises, no se modifican
+     * @return Huella del frame
+     */
+    public Fingerprint fingerprint(final byte[] pixels)
+    {
+        final long[] out = new long[Fingerprint.wordCount(bits)];
+        compute(pixels, out);
+        return Fingerprint.fromWords(out, bits);
+    }
+
+    /**
+     * Umbraliza y empaqueta los valores de un array a partir de una posición.
+     * @param values Valores a empaquetar
+     * @param from Primera posición
+     * @param out Palabras de la huella
+     */
+    private void pack(final byte[] values, final int from, final long[] out)
+    {
+        for (int i = from; i < bits; i++)
+        {
+            if ((values[i] & 0xff) >= threshold)
+                out[i >>> 6] |= 1L << (63 - (i & 63));
+        }
+    }
+}
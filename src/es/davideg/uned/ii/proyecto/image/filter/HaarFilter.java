@@ -156,10 +156,10 @@ public class HaarFilter extends AbstractFilter
      * @param outHeight Alto de la imagen destino
      * @return Numero de iteraciones a aplicar
      */
-    private Integer calculateIterations(final int originalWidth
-                                      , final int originalHeight
-                                      , final int outWidth
-                                      , final int outHeight)
+    static int calculateIterations(final int originalWidth
+                                 , final int originalHeight
+                                 , final int outWidth
+                                 , final int outHeight)
     {
         int i_w = (int) Math.floor(Math.log(originalWidth / outWidth) / Math.log(2));
         int i_h = (int) Math.floor(Math.log(originalHeight / outHeight) / Math.log(2));
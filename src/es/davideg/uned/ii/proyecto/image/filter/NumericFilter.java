@@ -22,9 +22,9 @@
 
 package es.davideg.uned.ii.proyecto.image.filter;
 
+import es.davideg.uned.ii.proyecto.image.Fingerprint;
 import es.davideg.uned.ii.proyecto.image.GraphicsUtilities;
 import java.awt.image.BufferedImage;
-import java.math.BigInteger;
 import java.security.InvalidParameterException;
 
 /**
@@ -38,27 +38,18 @@ public class NumericFilter
      * <p>La transformación se realiza asociando a cada pixel un valor binario
      * (0 o 1) en función del valor del pixel. Con la matriz resultante se forma
      * un número binario empenzando por el valor superior izquierdo y terminando
-     * por el inferior derecho. Finalmente ese valor se transforma a entero.</p>
+     * por el inferior derecho. Los bits se empaquetan directamente en una
+     * huella.</p>
      * @param src La imagen a procesar
      * @return Valor numerico que representa la imagen
      * @throws InvalidParameterException Si la imagen de entrada no es en blanco y negro
      */
-    public BigInteger filter(final BufferedImage src)
+    public Fingerprint filter(final BufferedImage src)
     {
         if (src.getType() != BufferedImage.TYPE_BYTE_GRAY)
             throw new InvalidParameterException("Image must be of TYPE_BYTE_GRAY type");
 
-        BigInteger dest = BigInteger.ZERO;
         byte[] data = GraphicsUtilities.getPixels(src, 0, 0, src.getWidth(), src.getHeight(), (byte[])null);
-        
-        
-        for (byte pixel : data)
-        {
-            dest = dest.shiftLeft(1);
-
-            if (pixel == -1)
-                dest = dest.add(BigInteger.ONE);
-        }
-        return dest;
+        return Fingerprint.fromPixels(data, data.length);
     }
 }
@@ -0,0 +1,133 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.video;
+
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.image.GraphicsUtilities;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Obtiene bajo demanda los frames de un video que no los tiene
+ * guardados.</p>
+ * <p>Con <code>frames.format=none</code> la base de datos solo guarda las
+ * huellas y los vectores de cada frame. Cuando hay que mostrar un frame se
+ * vuelve a decodificar del video con ffmpeg, situandose directamente en su
+ * instante a partir de los frames por segundo del video.</p>
+ * <p>Los últimos <code>frames.cache</code> frames obtenidos se guardan en
+ * memoria, compartidos por todos los videos, porque la misma busqueda suele
+ * mostrar varias veces los mismos frames.</p>
+ * @see Video#extractFrame(int, int, int)
+ * @author David Escribano García
+ */
+public final class FrameExtractor
+{
+    private static final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest)
+        {
+            return size() > ConfigurationManager.getIntProperty("frames.cache", 256);
+        }
+    };
+    private static final Logger logger = Logger.getLogger(FrameExtractor.class.getName());
+
+    private final Video video;
+    private final int width, height;
+
+    /**
+     * Crea un nuevo FrameExtractor.
+     * @param video Video del que se obtienen los frames, debe conocer sus
+     * frames por segundo
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     */
+    public FrameExtractor(final Video video, final int width, final int height)
+    {
+        this.video = video;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Devuelve los pixeles de un frame. El array es compartido con la caché,
+     * no se debe modificar.
+     * @param frame Número de frame, empezando por 1
+     * @return Pixeles en escala de grises
+     * @throws IOException Si ffmpeg no devuelve el frame
+     */
+    public byte[] getPixels(final int frame) throws IOException
+    {
+        final String key = video.getHash() + ":" + frame;
+        synchronized (cache)
+        {
+            final byte[] pixels = cache.get(key);
+            if (pixels != null)
+                return pixels;
+        }
+
+        final byte[] pixels;
+        try
+        {
+            pixels = video.extractFrame(frame, width, height);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Se ha interrumpido la obtención del frame " + frame);
+        }
+        logger.log(Level.FINE, "Frame {0} obtenido de {1}", new Object[]{frame, video.getName()});
+
+        synchronized (cache)
+        {
+            cache.put(key, pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Devuelve un frame como imagen, para mostrarlo en pantalla.
+     * @param frame Número de frame, empezando por 1
+     * @return Imagen en escala de grises
+     * @throws IOException Si ffmpeg no devuelve el frame
+     */
+    public BufferedImage getImage(final int frame) throws IOException
+    {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        GraphicsUtilities.setPixels(image, 0, 0, width, height, getPixels(frame));
+        return image;
+    }
+
+    /**
+     * Devuelve el video del que se obtienen los frames.
+     * @return Video
+     */
+    public Video getVideo()
+    {
+        return video;
+    }
+}
@@ -0,0 +1,43 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.video;
+
+import java.io.IOException;
+
+/**
+ * Recibe los frames de un video a medida que se van decodificando.
+ * @see Video#decodeFrames(int, int, FrameHandler)
+ * @author David Escribano García
+ */
+public interface FrameHandler
+{
+    /**
+     * Se invoca por cada frame decodificado. El array de pixeles pasa a ser
+     * propiedad del receptor, el decodificador no lo vuelve a utilizar.
+     * @param frame Número de frame, empezando por 1
+     * @param pixels Pixeles del frame en escala de grises
+     * @throws IOException Si el receptor no puede guardar el frame
+     * @throws InterruptedException Si se interrumpe la espera del receptor
+     */
+    void frame(int frame, byte[] pixels) throws IOException, InterruptedException;
+}
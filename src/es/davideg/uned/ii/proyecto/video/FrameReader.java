@@ -0,0 +1,117 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.video;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Lee frames de tamaño fijo desde un flujo de datos.</p>
+ * <p>Se utiliza para leer la salida de ffmpeg cuando se le pide que escriba
+ * los frames en formato <code>rawvideo</code> con pixeles <code>gray</code>:
+ * cada frame ocupa exactamente <code>width * height</code> bytes y los frames
+ * van uno detrás de otro sin ninguna cabecera.</p>
+ * @author David Escribano García
+ */
+public class FrameReader
+{
+    private final InputStream input;
+    private final int frameSize;
+    private int frameNumber = 0;
+    private static final Logger logger = Logger.getLogger(FrameReader.class.getName());
+
+    /**
+     * Crea un nuevo FrameReader.
+     * @param input Flujo de datos con los frames
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     */
+    public FrameReader(final InputStream input, final int width, final int height)
+    {
+        this.frameSize = width * height;
+        this.input = new BufferedInputStream(input, frameSize * 4);
+    }
+
+    /**
+     * <p>Lee el siguiente frame y lo guarda en el array recibido.</p>
+     * <p>Si el flujo termina a mitad de un frame, el frame incompleto se
+     * descarta.</p>
+     * @param frame Array donde se guardan los pixeles, debe tener al menos
+     * <code>getFrameSize()</code> elementos
+     * @return Verdadero si se ha leido un frame completo, falso si no hay más frames
+     * @throws IOException Si hay un error de lectura
+     */
+    public boolean read(final byte[] frame) throws IOException
+    {
+        if (frame.length < frameSize)
+            throw new IllegalArgumentException("frame array must have a length >= frameSize");
+
+        int offset = 0;
+        while (offset < frameSize)
+        {
+            final int numRead = input.read(frame, offset, frameSize - offset);
+            if (numRead == -1)
+            {
+                if (offset > 0)
+                {
+                    logger.log(Level.WARNING, "Frame {0} incompleto ({1} bytes), se descarta", new Object[]{frameNumber + 1, offset});
+                }
+                return false;
+            }
+            offset += numRead;
+        }
+        frameNumber++;
+        return true;
+    }
+
+    /**
+     * Devuelve el número del último frame leido. Los frames se numeran
+     * empezando por 1, igual que hace ffmpeg al generar ficheros.
+     * @return Número de frame
+     */
+    public int getFrameNumber()
+    {
+        return frameNumber;
+    }
+
+    /**
+     * Devuelve el tamaño en bytes de cada frame.
+     * @return Tamaño de un frame
+     */
+    public int getFrameSize()
+    {
+        return frameSize;
+    }
+
+    /**
+     * Cierra el flujo de datos.
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        input.close();
+    }
+}
@@ -0,0 +1,685 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.video;
+
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.image.GraphicsUtilities;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Almacén con todos los frames de un video en un único fichero.</p>
+ * <p>El fichero <code>&lt;hash&gt;.frames</code> se guarda en
+ * <code>FRAMES_PATH</code> y empieza con una cabecera de 16 bytes (marca,
+ * versión, ancho y alto). El resto depende de la versión:
+ *      <ul>
+ *          <li>1, sin comprimir: los frames en escala de grises, uno detrás
+ *          de otro y sin separación, en el mismo formato que los entrega
+ *          ffmpeg. El frame <code>n</code> empieza en
+ *          <code>16 + (n - 1) * ancho * alto</code>.</li>
+ *          <li>2, comprimido: cada <code>frames.keyframe</code> frames hay
+ *          un frame clave y el resto se guardan como XOR con su frame clave,
+ *          que en frames casi iguales es casi todo ceros. Cada frame se
+ *          comprime por separado con <code>Deflater</code>. Al final del
+ *          fichero está el índice con la posición de cada frame y una cola
+ *          de 16 bytes con la posición del índice, el número de frames y la
+ *          distancia entre frames clave.</li>
+ *      </ul></p>
+ * <p>Se escribe de forma secuencial durante la ingesta y se lee proyectando
+ * el fichero en memoria, por tramos de como mucho 1 GiB que siempre
+ * contienen frames completos, así que no hay límite de tamaño. Sin comprimir, el refinamiento de las busquedas
+ * compara directamente los bytes del fichero sin copiarlos ni decodificar
+ * ninguna imagen. Comprimido, para leer un frame solo hay que descomprimir
+ * ese frame y su frame clave, y los últimos frames clave se guardan ya
+ * descomprimidos porque los comparten los frames de alrededor.</p>
+ * <p>Los videos añadidos con versiones anteriores, o con
+ * <code>video.ingest=files</code>, siguen teniendo un directorio con un
+ * fichero bmp por frame.</p>
+ * @author David Escribano García
+ */
+public final class FrameStore
+{
+    /**
+     * Extensión de los ficheros de frames.
+     */
+    public static final String EXTENSION = ".frames";
+
+    private static final int MAGIC = 0x46524D53;  // "FRMS"
+    private static final int VERSION_RAW = 1;
+    private static final int VERSION_DEFLATE = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final int CACHED_KEYFRAMES = 32;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final String FORMAT_BMP = "bmp";
+    private static final String FORMAT_DEFLATE = "deflate";
+    private static final String FORMAT_NONE = "none";
+
+    private final File file;
+    private ByteBuffer[] segments;
+    private long[] segmentStarts;
+    private int width, height;
+    private int frameSize;
+    private int frameCount;
+    private int keyframeInterval;
+    private long[] offsets;
+    private final Map<Integer, byte[]> keyframes = new LinkedHashMap<Integer, byte[]>(CACHED_KEYFRAMES, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, byte[]> eldest)
+        {
+            return size() > CACHED_KEYFRAMES;
+        }
+    };
+
+    /**
+     * Descompresor de cada thread, se reutiliza entre frames.
+     */
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+    };
+    private static final Logger logger = Logger.getLogger(FrameStore.class.getName());
+
+    /**
+     * Crea un objeto FrameStore. El fichero no se abre hasta que se necesita.
+     * @param file Fichero de frames
+     */
+    private FrameStore(final File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Indica si los frames de los nuevos videos se guardan en un único
+     * fichero. Se controla con <code>frames.format</code>: <code>store</code>
+     * (por defecto), <code>deflate</code> para comprimirlos, <code>bmp</code>
+     * para seguir generando un fichero por frame o <code>none</code> para no
+     * guardarlos.
+     * @return Verdadero si se usa el almacén de frames
+     */
+    public static boolean isEnabled()
+    {
+        final String format = ConfigurationManager.getProperty("frames.format");
+        return !FORMAT_BMP.equalsIgnoreCase(format) && !FORMAT_NONE.equalsIgnoreCase(format);
+    }
+
+    /**
+     * Indica si los frames de los nuevos videos no se guardan. En ese caso
+     * la base de datos solo tiene las huellas y los vectores, y los frames
+     * que se muestran se vuelven a obtener del video.
+     * @return Verdadero si <code>frames.format=none</code>
+     * @see FrameExtractor
+     */
+    public static boolean isFrameless()
+    {
+        return FORMAT_NONE.equalsIgnoreCase(ConfigurationManager.getProperty("frames.format"));
+    }
+
+    /**
+     * Indica si los almacenes de frames de los nuevos videos se comprimen.
+     * @return Verdadero si <code>frames.format=deflate</code>
+     */
+    private static boolean isCompressionEnabled()
+    {
+        return FORMAT_DEFLATE.equalsIgnoreCase(ConfigurationManager.getProperty("frames.format"));
+    }
+
+    /**
+     * Devuelve el fichero de frames de un video.
+     * @param framesPath Directorio de frames de la base de datos
+     * @param hash Hash del video
+     * @return Fichero de frames, puede no existir
+     */
+    public static File getFile(final File framesPath, final String hash)
+    {
+        return new File(framesPath, hash + EXTENSION);
+    }
+
+    /**
+     * Busca el fichero de frames de un video.
+     * @param framesPath Directorio de frames de la base de datos
+     * @param hash Hash del video
+     * @return Almacén de frames, o nulo si el video guarda sus frames como bmp
+     */
+    public static FrameStore find(final File framesPath, final String hash)
+    {
+        final File file = getFile(framesPath, hash);
+        return file.isFile() ? new FrameStore(file) : null;
+    }
+
+    /**
+     * Crea un nuevo fichero de frames para un video, comprimido o no según
+     * <code>frames.format</code>.
+     * @param framesPath Directorio de frames de la base de datos
+     * @param hash Hash del video
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     * @return Objeto para escribir los frames
+     * @throws IOException Si no se puede crear el fichero
+     */
+    public static Writer create(final File framesPath, final String hash, final int width, final int height) throws IOException
+    {
+        framesPath.mkdirs();
+        return new Writer(getFile(framesPath, hash), width, height, getKeyframeInterval());
+    }
+
+    /**
+     * Devuelve la distancia entre frames clave de los nuevos almacenes.
+     * @return <code>frames.keyframe</code> si se comprimen, 0 si no
+     */
+    private static int getKeyframeInterval()
+    {
+        return isCompressionEnabled() ? Math.max(1, ConfigurationManager.getIntProperty("frames.keyframe", 16)) : 0;
+    }
+
+    /**
+     * Crea un fichero de frames provisional, para un video cuyo hash todavía
+     * no se conoce. Recibe su nombre definitivo al cerrarlo con
+     * <code>close(File)</code>.
+     * @param framesPath Directorio de frames de la base de datos
+     * @param width Ancho de los frames
+     * @param height Alto de los frames
+     * @return Objeto para escribir los frames
+     * @throws IOException Si no se puede crear el fichero
+     * @see Writer#close(File)
+     */
+    public static Writer createStaging(final File framesPath, final int width, final int height) throws IOException
+    {
+        framesPath.mkdirs();
+        final File temp = File.createTempFile("staging-", EXTENSION + ".tmp", framesPath);
+        return new Writer(null, temp, width, height, getKeyframeInterval());
+    }
+
+    /**
+     * Proyecta el fichero en memoria si todavía no se ha hecho.
+     * @throws IOException Si el fichero no existe o no es válido
+     */
+    private synchronized void map() throws IOException
+    {
+        if (segments != null)
+            return;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            final long length = raf.length();
+            if (length < HEADER_SIZE || raf.readInt() != MAGIC)
+                throw new IOException("Fichero de frames no valido: " + file);
+            final int version = raf.readInt();
+            if (version != VERSION_RAW && version != VERSION_DEFLATE)
+                throw new IOException("Version de fichero de frames no soportada: " + file);
+
+            width = raf.readInt();
+            height = raf.readInt();
+            frameSize = width * height;
+
+            // Límites de los tramos que se proyectan, siempre entre frames
+            final List<Long> bounds = new ArrayList<Long>();
+            if (version == VERSION_RAW)
+            {
+                frameCount = frameSize > 0 ? (int)((length - HEADER_SIZE) / frameSize) : 0;
+                final long end = HEADER_SIZE + (long)frameCount * frameSize;
+                final long step = Math.max(1, SEGMENT_SIZE / Math.max(1, frameSize)) * frameSize;
+                for (long start = HEADER_SIZE; start < end; start += step)
+                {
+                    bounds.add(start);
+                }
+                bounds.add(end);
+            }
+            else
+            {
+                if (length < HEADER_SIZE + TRAILER_SIZE)
+                    throw new IOException("Fichero de frames no valido: " + file);
+                final long trailer = length - TRAILER_SIZE;
+                raf.seek(trailer);
+                final long index = raf.readLong();
+                frameCount = raf.readInt();
+                keyframeInterval = raf.readInt();
+                if (keyframeInterval < 1 || frameCount < 0 || index < HEADER_SIZE || index + (frameCount + 1L) * 8 != trailer)
+                    throw new IOException("Fichero de frames no valido: " + file);
+
+                // Posición de cada frame más la del final del último
+                final ByteBuffer table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, index, (frameCount + 1L) * 8);
+                offsets = new long[frameCount + 1];
+                for (int i = 0; i < offsets.length; i++)
+                {
+                    offsets[i] = table.getLong(i * 8);
+                    if (offsets[i] < (i == 0 ? HEADER_SIZE : offsets[i - 1]) || offsets[i] > index)
+                        throw new IOException("Fichero de frames no valido: " + file);
+                }
+
+                // Cada tramo llega hasta el último frame que cabe entero
+                bounds.add(offsets[0]);
+                for (int i = 1; i < offsets.length; i++)
+                {
+                    final long start = bounds.get(bounds.size() - 1);
+                    if (offsets[i] - start > SEGMENT_SIZE && offsets[i - 1] > start)
+                        bounds.add(offsets[i - 1]);
+                }
+                bounds.add(offsets[frameCount]);
+            }
+
+            // Las proyecciones siguen siendo válidas después de cerrar el fichero
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer[] mapped = new ByteBuffer[bounds.size() - 1];
+            segmentStarts = new long[mapped.length];
+            for (int i = 0; i < mapped.length; i++)
+            {
+                segmentStarts[i] = bounds.get(i);
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, bounds.get(i), bounds.get(i + 1) - bounds.get(i));
+            }
+            segments = mapped;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Devuelve una vista de una parte del fichero proyectado, que siempre
+     * está entera en el mismo tramo.
+     * @param position Posición en el fichero
+     * @param size Número de bytes
+     * @return Buffer que empieza en la posición indicada
+     */
+    private ByteBuffer slice(final long position, final int size)
+    {
+        int segment = Arrays.binarySearch(segmentStarts, position);
+        if (segment < 0)
+            segment = -segment - 2;
+        final ByteBuffer view = segments[segment].duplicate();
+        final int offset = (int)(position - segmentStarts[segment]);
+        view.limit(offset + size);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /**
+     * <p>Devuelve los pixeles de un frame.</p>
+     * <p>El buffer devuelto empieza en el primer pixel del frame y tiene
+     * exactamente <code>getFrameSize()</code> bytes. Si el almacén no está
+     * comprimido es una vista del fichero proyectado en memoria, sin
+     * copiar nada; si lo está, el frame recién descomprimido. No se debe
+     * modificar.</p>
+     * @param frame Número de frame, empezando por 1
+     * @return Buffer con los pixeles en escala de grises
+     * @throws IOException Si el frame no está en el fichero o no se puede descomprimir
+     */
+    public ByteBuffer getFrame(final int frame) throws IOException
+    {
+        map();
+        if (frame < 1 || frame > frameCount)
+            throw new IOException("El frame " + frame + " no existe en " + file);
+
+        if (offsets == null)
+        {
+            return slice(HEADER_SIZE + (long)(frame - 1) * frameSize, frameSize);
+        }
+
+        final int keyframe = frame - (frame - 1) % keyframeInterval;
+        final byte[] key = getKeyframe(keyframe);
+        if (frame == keyframe)
+            return ByteBuffer.wrap(key).asReadOnlyBuffer();
+
+        final byte[] pixels = inflate(frame);
+        for (int i = 0; i < frameSize; i++)
+        {
+            pixels[i] ^= key[i];
+        }
+        return ByteBuffer.wrap(pixels);
+    }
+
+    /**
+     * Devuelve un frame clave descomprimido, de la cache si está o
+     * descomprimiendolo. La descompresión se hace fuera del bloqueo para que
+     * varios threads puedan descomprimir a la vez.
+     * @param keyframe Número del frame clave
+     * @return Pixeles del frame clave, no se deben modificar
+     * @throws IOException Si el frame no se puede descomprimir
+     */
+    private byte[] getKeyframe(final int keyframe) throws IOException
+    {
+        synchronized (keyframes)
+        {
+            final byte[] cached = keyframes.get(keyframe);
+            if (cached != null)
+                return cached;
+        }
+
+        final byte[] pixels = inflate(keyframe);
+        synchronized (keyframes)
+        {
+            keyframes.put(keyframe, pixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Descomprime un frame tal y como está guardado.
+     * @param frame Número de frame
+     * @return Pixeles del frame, o su XOR con el frame clave
+     * @throws IOException Si el frame no se puede descomprimir
+     */
+    private byte[] inflate(final int frame) throws IOException
+    {
+        final byte[] compressed = new byte[(int)(offsets[frame] - offsets[frame - 1])];
+        slice(offsets[frame - 1], compressed.length).get(compressed);
+
+        final byte[] pixels = new byte[frameSize];
+        final Inflater inflater = inflaters.get();
+        try
+        {
+            inflater.reset();
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < frameSize && !inflater.finished())
+            {
+                final int n = inflater.inflate(pixels, length, frameSize - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += n;
+            }
+            if (length != frameSize)
+                throw new IOException("Frame " + frame + " incompleto en " + file);
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException("Frame " + frame + " corrupto en " + file + ": " + ex.getMessage());
+        }
+        return pixels;
+    }
+
+    /**
+     * Devuelve el tamaño en bytes de cada frame.
+     * @return Tamaño de un frame
+     * @throws IOException Si no se puede proyectar el fichero
+     */
+    public int getFrameSize() throws IOException
+    {
+        map();
+        return frameSize;
+    }
+
+    /**
+     * Devuelve el número de frames guardados.
+     * @return Número de frames
+     * @throws IOException Si no se puede proyectar el fichero
+     */
+    public int getFrameCount() throws IOException
+    {
+        map();
+        return frameCount;
+    }
+
+    /**
+     * Indica si el almacén está comprimido.
+     * @return Verdadero si los frames están comprimidos
+     * @throws IOException Si no se puede proyectar el fichero
+     */
+    public boolean isCompressed() throws IOException
+    {
+        map();
+        return offsets != null;
+    }
+
+    /**
+     * Devuelve una copia de los pixeles de un frame.
+     * @param frame Número de frame
+     * @return Pixeles en escala de grises
+     * @throws IOException Si el frame no está en el fichero
+     */
+    public byte[] getPixels(final int frame) throws IOException
+    {
+        final ByteBuffer view = getFrame(frame);
+        final byte[] pixels = new byte[view.remaining()];
+        view.get(pixels);
+        return pixels;
+    }
+
+    /**
+     * Devuelve un frame como imagen, para mostrarlo en pantalla.
+     * @param frame Número de frame
+     * @return Imagen en escala de grises
+     * @throws IOException Si el frame no está en el fichero
+     */
+    public BufferedImage getImage(final int frame) throws IOException
+    {
+        final byte[] pixels = getPixels(frame);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        GraphicsUtilities.setPixels(image, 0, 0, width, height, pixels);
+        return image;
+    }
+
+    /**
+     * Devuelve el fichero de frames.
+     * @return Fichero
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * <p>Escribe los frames de un video en orden.</p>
+     * <p>Se escribe en un fichero temporal que se renombra al cerrar, así
+     * nunca queda un fichero de frames a medias con el nombre definitivo.</p>
+     * <p>Los objetos de esta clase no se pueden compartir entre threads.</p>
+     */
+    public static final class Writer
+    {
+        private final File file;
+        private final File temp;
+        private final int frameSize;
+        private final DataOutputStream output;
+        private int nextFrame = 1;
+
+        // Solo si se comprime: último frame clave y posición de cada frame
+        private final int keyframeInterval;
+        private final byte[] keyframe;
+        private final byte[] delta;
+        private final byte[] compressed;
+        private final Deflater deflater;
+        private final List<Long> index = new ArrayList<Long>();
+        private long position = HEADER_SIZE;
+
+        /**
+         * Crea un objeto Writer y escribe la cabecera.
+         * @param file Fichero de frames
+         * @param width Ancho de los frames
+         * @param height Alto de los frames
+         * @param keyframeInterval Distancia entre frames clave, o 0 para no comprimir
+         * @throws IOException Si no se puede crear el fichero
+         */
+        private Writer(final File file, final int width, final int height, final int keyframeInterval) throws IOException
+        {
+            this(file, new File(file.getPath() + ".tmp"), width, height, keyframeInterval);
+        }
+
+        /**
+         * Crea un objeto Writer y escribe la cabecera.
+         * @param file Fichero de frames, nulo si todavía no se conoce
+         * @param temp Fichero temporal donde se escribe
+         * @param width Ancho de los frames
+         * @param height Alto de los frames
+         * @param keyframeInterval Distancia entre frames clave, o 0 para no comprimir
+         * @throws IOException Si no se puede crear el fichero
+         */
+        private Writer(final File file, final File temp, final int width, final int height, final int keyframeInterval) throws IOException
+        {
+            this.file = file;
+            this.temp = temp;
+            this.frameSize = width * height;
+            this.keyframeInterval = keyframeInterval;
+            if (keyframeInterval > 0)
+            {
+                this.keyframe = new byte[frameSize];
+                this.delta = new byte[frameSize];
+                this.compressed = new byte[Math.max(8192, frameSize)];
+                this.deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            else
+            {
+                this.keyframe = null;
+                this.delta = null;
+                this.compressed = null;
+                this.deflater = null;
+            }
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), Math.max(8192, frameSize * 16)));
+            output.writeInt(MAGIC);
+            output.writeInt(keyframeInterval > 0 ? VERSION_DEFLATE : VERSION_RAW);
+            output.writeInt(width);
+            output.writeInt(height);
+        }
+
+        /**
+         * Añade un frame al final del fichero.
+         * @param frame Número de frame, debe ser el siguiente al último escrito
+         * @param pixels Pixeles del frame en escala de grises, no se modifican
+         * @throws IOException Si el frame no es el siguiente o hay un error de escritura
+         */
+        public void write(final int frame, final byte[] pixels) throws IOException
+        {
+            if (frame != nextFrame)
+                throw new IOException("Se esperaba el frame " + nextFrame + " y se ha recibido el " + frame);
+            if (deflater == null)
+            {
+                output.write(pixels, 0, frameSize);
+            }
+            else if ((frame - 1) % keyframeInterval == 0)
+            {
+                System.arraycopy(pixels, 0, keyframe, 0, frameSize);
+                deflate(pixels);
+            }
+            else
+            {
+                for (int i = 0; i < frameSize; i++)
+                {
+                    delta[i] = (byte)(pixels[i] ^ keyframe[i]);
+                }
+                deflate(delta);
+            }
+            nextFrame++;
+        }
+
+        /**
+         * Comprime y escribe un frame.
+         * @param data Pixeles del frame o su XOR con el frame clave
+         * @throws IOException Si hay un error de escritura
+         */
+        private void deflate(final byte[] data) throws IOException
+        {
+            index.add(position);
+            deflater.reset();
+            deflater.setInput(data, 0, frameSize);
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                final int n = deflater.deflate(compressed);
+                output.write(compressed, 0, n);
+                position += n;
+            }
+        }
+
+        /**
+         * Termina el fichero y le da su nombre definitivo.
+         * @throws IOException Si hay un error de escritura
+         */
+        public void close() throws IOException
+        {
+            if (file == null)
+                throw new IOException("El fichero de frames provisional no tiene nombre definitivo");
+            close(file);
+        }
+
+        /**
+         * Termina el fichero y le da el nombre indicado.
+         * @param file Fichero de frames definitivo
+         * @throws IOException Si hay un error de escritura
+         */
+        public void close(final File file) throws IOException
+        {
+            if (deflater != null)
+            {
+                deflater.end();
+
+                // Índice de frames y cola
+                index.add(position);
+                for (long offset : index)
+                {
+                    output.writeLong(offset);
+                }
+                output.writeLong(position);
+                output.writeInt(nextFrame - 1);
+                output.writeInt(keyframeInterval);
+            }
+            output.close();
+            if (file.exists() && !file.delete())
+                throw new IOException("No se puede reemplazar el fichero " + file);
+            if (!temp.renameTo(file))
+                throw new IOException("No se puede renombrar el fichero " + temp);
+            logger.log(Level.INFO, "Guardados {0} frames en {1} ({2} bytes)", new Object[]{nextFrame - 1, file.getName(), file.length()});
+        }
+
+        /**
+         * Descarta el fichero a medio escribir.
+         */
+        public void abort()
+        {
+            if (deflater != null)
+                deflater.end();
+            try
+            {
+                output.close();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING, "Error al cerrar el fichero {0}: {1}", new Object[]{temp, ex.getMessage()});
+            }
+            if (temp.exists() && !temp.delete())
+                logger.log(Level.WARNING, "No se puede borrar el fichero {0}", temp);
+        }
+    }
+}
@@ -0,0 +1,814 @@
+/** Copyright 2010 David Escribano García
+*
+* Author: David Escribano García
+* Director: Jesús Antonio Vega Sánchez (CIEMAT)
+* Supervisor: Sebastián Dormido Canto (UNED)
+*
+* Licensed under the EUPL, Version 1.1 or - as soon they will be
+* approved by the European Commission - subsequent versions of the
+* EUPL (the "Licence"); you may not use this work except in
+* compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://www.osor.eu/eupl/european-union-public-licence-eupl-v.1.1
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the Licence is distributed on an "AS
+* IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+* express or implied.
+* See the Licence for the specific language governing permissions
+* and limitations under the Licence.
+*/
+
+package es.davideg.uned.ii.proyecto.video;
+
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
+import es.davideg.uned.ii.proyecto.crypt.Hash;
+import es.davideg.uned.ii.proyecto.db.DbManager;
+import es.davideg.uned.ii.proyecto.db.VideoWriter;
+import es.davideg.uned.ii.proyecto.image.DatabaseImage;
+import es.davideg.uned.ii.proyecto.image.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Ingesta de videos en varias etapas que trabajan en paralelo.</p>
+ * <p>El proceso se divide en tres etapas unidas por colas limitadas:
+ *      <ol>
+ *          <li>Decodificación: calcula el hash del video y obtiene sus frames,
+ *          que se van guardando en el almacén de frames del video
+ *          (<code>FrameStore</code>) salvo que <code>frames.format=bmp</code>.
+ *          Con <code>frames.format=none</code> los frames no se guardan y
+ *          solo pasan a la siguiente etapa.</li>
+ *          <li>Filtrado: aplica el filtro haar a cada frame.</li>
+ *          <li>Escritura: va guardando en la base de datos las imagenes
+ *          filtradas y, cuando estan todas, el video.</li>
+ *      </ol>
+ * De esta forma mientras se decodifica un video se pueden estar filtrando
+ * sus frames y guardando en base de datos los que ya estan filtrados.
+ * Cuando una cola se llena la etapa anterior se detiene hasta que haya
+ * hueco, así la memoria usada está acotada.</p>
+ * <p>El número de threads de cada etapa y el tamaño de las colas se leen de
+ * la configuración:
+ *      <ul>
+ *          <li>ingest.threads.decode: threads de decodificación (1)</li>
+ *          <li>ingest.threads.fingerprint: threads de filtrado (system.thread.filter)</li>
+ *          <li>ingest.queue.frames: frames pendientes de filtrar (256)</li>
+ *          <li>ingest.queue.rows: imagenes pendientes de escribir (1024)</li>
+ *      </ul>
+ * La escritura se hace siempre en un único thread, ya que la base de datos
+ * solo admite un escritor.</p>
+ * @author David Escribano García
+ */
+public class IngestPipeline
+{
+    /**
+     * Recibe información sobre el avance de la ingesta. Los métodos se
+     * invocan desde los threads de las distintas etapas.
+     */
+    public interface Listener
+    {
+        /**
+         * Se ha completado una etapa de un video: hash, decodificación,
+         * filtrado o escritura en base de datos.
+         * @param video Video
+         */
+        void stepDone(Video video);
+
+        /**
+         * El video ya existe en la base de datos y no se procesa.
+         * @param video Video
+         */
+        void videoExists(Video video);
+
+        /**
+         * Se ha producido un error procesando el video.
+         * @param video Video
+         * @param ex Error producido
+         */
+        void videoFailed(Video video, Exception ex);
+    }
+
+    private final DbManager dbManager;
+    private final Listener listener;
+    private final File framesPath;
+    private final int imageWidth, imageHeight;
+    private final int waveletWidth, waveletHeight;
+    private final boolean pipeMode;
+    private final boolean frameStore;
+    private final boolean frameless;
+
+    private final BlockingQueue<Video> input = new LinkedBlockingQueue<Video>();
+    private final BlockingQueue<Frame> frames;
+    private final BlockingQueue<Row> rows;
+
+    private final Stage decodeStage;
+    private final Stage fingerprintStage;
+    private final Stage writeStage;
+
+    private volatile boolean cancelled = false;
+    private static final Logger logger = Logger.getLogger(IngestPipeline.class.getName());
+
+    /**
+     * Crea un nuevo IngestPipeline.
+     * @param dbManager Base de datos donde se añaden los videos
+     * @param framesPath Directorio donde se guardan los frames
+     * @param imageWidth Ancho de los frames
+     * @param imageHeight Alto de los frames
+     * @param waveletWidth Ancho de la wavelet
+     * @param waveletHeight Alto de la wavelet
+     * @param pipeMode Verdadero si los frames se leen de la salida de ffmpeg,
+     * falso si ffmpeg genera un fichero por frame
+     * @param listener Receptor de los avances de la ingesta
+     */
+    public IngestPipeline(final DbManager dbManager
+                        , final File framesPath
+                        , final int imageWidth
+                        , final int imageHeight
+                        , final int waveletWidth
+                        , final int waveletHeight
+                        , final boolean pipeMode
+                        , final Listener listener)
+    {
+        this.dbManager = dbManager;
+        this.framesPath = framesPath;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.waveletWidth = waveletWidth;
+        this.waveletHeight = waveletHeight;
+        this.pipeMode = pipeMode;
+        this.frameStore = pipeMode && FrameStore.isEnabled();
+        this.frameless = pipeMode && FrameStore.isFrameless();
+        this.listener = listener;
+
+        final int filterThreads = ConfigurationManager.getIntProperty("system.thread.filter", 1);
+        decodeStage      = new Stage("decode", ConfigurationManager.getIntProperty("ingest.threads.decode", 1));
+        fingerprintStage = new Stage("fingerprint", ConfigurationManager.getIntProperty("ingest.threads.fingerprint", filterThreads));
+        writeStage       = new Stage("db", 1);
+
+        frames = new ArrayBlockingQueue<Frame>(Math.max(1, ConfigurationManager.getIntProperty("ingest.queue.frames", 256)));
+        rows   = new ArrayBlockingQueue<Row>(Math.max(1, ConfigurationManager.getIntProperty("ingest.queue.rows", 1024)));
+    }
+
+    /**
+     * Procesa la lista de videos y espera a que todas las etapas terminen.
+     * @param videos Videos a añadir
+     * @throws InterruptedException Si se interrumpe la espera, en ese caso
+     * se cancela la ingesta
+     */
+    public void run(final List<Video> videos) throws InterruptedException
+    {
+        input.addAll(videos);
+
+        final ExecutorService decoders = Executors.newFixedThreadPool(decodeStage.threads);
+        final ExecutorService fingerprinters = Executors.newFixedThreadPool(fingerprintStage.threads);
+        final ExecutorService writers = Executors.newFixedThreadPool(writeStage.threads);
+        try
+        {
+            for (int i = 0; i < decodeStage.threads; i++)
+                decoders.execute(new Decoder());
+            for (int i = 0; i < fingerprintStage.threads; i++)
+                fingerprinters.execute(new Fingerprinter());
+            for (int i = 0; i < writeStage.threads; i++)
+                writers.execute(new Writer());
+
+            // Cada etapa termina cuando ha terminado la anterior y ha vaciado su cola
+            decoders.shutdown();
+            decoders.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+            for (int i = 0; i < fingerprintStage.threads; i++)
+                frames.put(Frame.END);
+
+            fingerprinters.shutdown();
+            fingerprinters.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+            rows.put(Row.END);
+
+            writers.shutdown();
+            writers.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+        }
+        catch (InterruptedException ex)
+        {
+            cancel();
+            throw ex;
+        }
+        finally
+        {
+            if (cancelled)
+            {
+                decoders.shutdownNow();
+                fingerprinters.shutdownNow();
+                writers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Cancela la ingesta. Los videos que no se hayan escrito todavía en la
+     * base de datos se descartan.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        input.clear();
+        frames.clear();
+        rows.clear();
+    }
+
+    /**
+     * <p>Devuelve las métricas de cada etapa.</p>
+     * <p>Para cada etapa se indica el número de elementos procesados, el
+     * tiempo ocupado, el tiempo esperando a que llegue trabajo de la etapa
+     * anterior, el tiempo bloqueado porque la cola de la etapa siguiente
+     * estaba llena y la ocupación máxima de esa cola.</p>
+     * @return Texto con las métricas
+     */
+    public String getMetrics()
+    {
+        return decodeStage + "\n" + fingerprintStage + "\n" + writeStage;
+    }
+
+    /**
+     * Indica a la etapa de escritura que ya se han filtrado todos los frames
+     * de un video. Si el video ha fallado la escritura se abandona.
+     * @param job Video procesado
+     * @param stage Etapa que entrega el video
+     * @throws InterruptedException
+     */
+    private void handOff(final VideoJob job, final Stage stage) throws InterruptedException
+    {
+        if (!job.failed)
+            listener.stepDone(job.video);
+        stage.put(rows, new Row(job, null));
+    }
+
+    /**
+     * <p>Empieza a obtener el hash del video.</p>
+     * <p>Si el fichero no ha cambiado desde la última vez que se calculó,
+     * el hash se lee de la base de datos. Si no, se calcula primero el hash
+     * rápido. Si no coincide con el de ningún video de la base de datos el
+     * video es nuevo, y el hash completo se puede calcular mientras se
+     * decodifica. Si coincide, el video puede estar repetido y el hash
+     * completo se calcula antes de volver, para comprobarlo sin decodificar
+     * el video; el hash rápido solo muestrea el fichero y no basta para
+     * rechazarlo.</p>
+     * @param video Video
+     * @param hasher Executor donde se calcula el hash completo mientras se
+     * decodifica el video, o nulo para calcularlo antes de volver
+     * @return Hash del video
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private Future<String> identify(final Video video, final ExecutorService hasher) throws NoSuchAlgorithmException, IOException, ClassNotFoundException, SQLException
+    {
+        final File file = video.getFile();
+        final String cached = dbManager.getCachedHash(file);
+        if (cached != null)
+        {
+            logger.log(Level.INFO, "Hash del video {0} sin cambios desde la última lectura", video.getName());
+            final FutureTask<String> task = new FutureTask<String>(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return cached;
+                }
+            });
+            task.run();
+            return task;
+        }
+
+        final String quickHash = Hash.getQuickHash(file);
+        final String known = dbManager.findQuickHash(quickHash);
+        if (known != null)
+            logger.log(Level.INFO, "El video {0} coincide por su hash rápido con {1}, se comprueba su hash completo", new Object[]{video.getName(), known});
+
+        final FutureTask<String> task = new FutureTask<String>(new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                // Un video añadido con otro hash.mode solo se reconoce con su
+                // método. Si resulta distinto, el video es nuevo y se
+                // identifica con el método configurado.
+                String hash = (known != null) ? Hash.getHashLike(file, known) : null;
+                if (hash == null || !hash.equals(known))
+                    hash = Hash.getVideoHash(file);
+                dbManager.cacheHash(file, quickHash, hash);
+                return hash;
+            }
+        });
+        if (hasher != null && known == null)
+            hasher.execute(task);
+        else
+            task.run();
+        return task;
+    }
+
+    /**
+     * Espera al hash del video y comprueba que el video no está ya en la
+     * base de datos. Si lo está, el video queda marcado como fallido.
+     * @param job Video en proceso
+     * @param identity Hash del video obtenido con <code>identify</code>
+     * @return Verdadero si el video es nuevo
+     * @throws InterruptedException
+     * @throws IOException Si no se ha podido calcular el hash
+     * @throws ClassNotFoundException
+     * @throws SQLException
+     */
+    private boolean confirm(final VideoJob job, final Future<String> identity) throws InterruptedException, IOException, ClassNotFoundException, SQLException
+    {
+        try
+        {
+            job.video.setHash(identity.get());
+        }
+        catch (ExecutionException ex)
+        {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof SQLException)
+                throw (SQLException)cause;
+            throw new IOException("No se ha podido calcular el hash del video " + job.video.getName() + ": " + cause);
+        }
+        listener.stepDone(job.video);
+
+        if (dbManager.existsVideo(job.video))
+        {
+            job.failed = true;
+            listener.videoExists(job.video);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * <p>Etapa de decodificación: hash del video, comprobación de que no
+     * existe en base de datos y obtención de los frames.</p>
+     * <p>Cuando los frames no se guardan como ficheros bmp, que se nombran
+     * con el hash del video, el hash completo se calcula en otro thread
+     * mientras se decodifica. Los frames se guardan en un almacén
+     * provisional y sus imagenes se van escribiendo con un identificador de
+     * video reservado; si al terminar resulta que el video ya existía, se
+     * descartan igual que los de un video que falla.</p>
+     */
+    private class Decoder implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            final ExecutorService hasher = (frameStore || frameless) ? Executors.newSingleThreadExecutor() : null;
+            try
+            {
+                decode(hasher);
+            }
+            finally
+            {
+                if (hasher != null)
+                    hasher.shutdownNow();
+            }
+        }
+
+        /**
+         * Procesa los videos de la cola de entrada hasta que se vacía.
+         * @param hasher Executor para el hash completo, o nulo si se calcula
+         * antes de decodificar
+         */
+        private void decode(final ExecutorService hasher)
+        {
+            Video video;
+            while (!cancelled && (video = input.poll()) != null)
+            {
+                final VideoJob job = new VideoJob(video);
+                final long start = System.nanoTime();
+                Future<String> identity = null;
+                try
+                {
+                    logger.log(Level.INFO, "Generando hash del video {0}", video.getName());
+                    identity = identify(video, hasher);
+                    // Con el hash ya calculado, o en la cache, no hace falta decodificar un video repetido
+                    final boolean confirmed = hasher == null || identity.isDone();
+                    if (confirmed && !confirm(job, identity))
+                        continue;
+
+                    logger.log(Level.INFO, "Obteniendo frames del video {0}", video.getName());
+                    if (frameStore)
+                    {
+                        // Los frames llegan en orden, se van añadiendo al
+                        // almacén provisional antes de pasar a la siguiente
+                        // etapa. Recibe su nombre cuando se conoce el hash.
+                        final FrameStore.Writer store = FrameStore.createStaging(framesPath, imageWidth, imageHeight);
+                        boolean stored = false;
+                        try
+                        {
+                            video.decodeFrames(imageWidth, imageHeight, new FrameHandler()
+                            {
+                                @Override
+                                public void frame(int frame, byte[] pixels) throws IOException, InterruptedException
+                                {
+                                    store.write(frame, pixels);
+                                    job.pending.incrementAndGet();
+                                    decodeStage.put(frames, new Frame(job, frame, pixels, null));
+                                }
+                            });
+                            if (confirmed || confirm(job, identity))
+                            {
+                                store.close(FrameStore.getFile(framesPath, video.getHash()));
+                                stored = true;
+                            }
+                        }
+                        finally
+                        {
+                            if (!stored)
+                                store.abort();
+                        }
+                    }
+                    else if (frameless)
+                    {
+                        // Solo se guardan las huellas, los frames que haya
+                        // que mostrar se obtendran del video
+                        video.decodeFrames(imageWidth, imageHeight, new FrameHandler()
+                        {
+                            @Override
+                            public void frame(int frame, byte[] pixels) throws InterruptedException
+                            {
+                                job.pending.incrementAndGet();
+                                decodeStage.put(frames, new Frame(job, frame, pixels, null));
+                            }
+                        });
+                        if (!confirmed)
+                            confirm(job, identity);
+                    }
+                    else if (pipeMode)
+                    {
+                        video.createFramesDir(framesPath);
+                        video.decodeFrames(imageWidth, imageHeight, new FrameHandler()
+                        {
+                            @Override
+                            public void frame(int frame, byte[] pixels) throws InterruptedException
+                            {
+                                job.pending.incrementAndGet();
+                                decodeStage.put(frames, new Frame(job, frame, pixels, job.video.getFrameFile(frame)));
+                            }
+                        });
+                    }
+                    else
+                    {
+                        video.generateImages(framesPath, imageWidth, imageHeight);
+                        for (File f : video.getFramesDir().listFiles())
+                        {
+                            final int position = Integer.valueOf(f.getName().replaceAll("\\D", ""));
+                            job.pending.incrementAndGet();
+                            decodeStage.put(frames, new Frame(job, position, null, f));
+                        }
+                    }
+                    if (!job.failed)
+                        listener.stepDone(video);
+                }
+                catch (Exception ex)
+                {
+                    job.failed = true;
+                    if (identity != null)
+                        identity.cancel(true);
+                    if (!cancelled)
+                        listener.videoFailed(video, ex);
+                }
+                finally
+                {
+                    decodeStage.done(start);
+                }
+
+                try
+                {
+                    if (job.decodeFinished())
+                        handOff(job, decodeStage);
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Etapa de filtrado: aplica el filtro haar a cada frame.
+     */
+    private class Fingerprinter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final Frame frame = fingerprintStage.take(frames);
+                    if (frame == Frame.END)
+                        return;
+
+                    final long start = System.nanoTime();
+                    final VideoJob job = frame.job;
+                    if (!job.failed)
+                    {
+                        // Las imagenes van directamente a la etapa de
+                        // escritura, no se guardan en el video
+                        final ImageProcessor processor;
+                        if (frame.pixels != null)
+                            processor = new ImageProcessor(frame.pixels, imageWidth, imageHeight, frame.file, frame.number, waveletWidth, waveletHeight, null);
+                        else
+                            processor = new ImageProcessor(frame.file, frame.number, waveletWidth, waveletHeight, null);
+                        processor.run();
+
+                        // Paso la imagen a la etapa de escritura
+                        if (processor.getResult() != null)
+                            fingerprintStage.put(rows, new Row(job, processor.getResult()));
+                    }
+                    fingerprintStage.done(start);
+
+                    if (job.frameFinished())
+                        handOff(job, fingerprintStage);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Ingesta cancelada
+            }
+        }
+    }
+
+    /**
+     * Etapa de escritura: guarda las imagenes en la base de datos a medida
+     * que llegan y añade cada video cuando estan todas sus imagenes.
+     */
+    private class Writer implements Runnable
+    {
+        private final Map<VideoJob, VideoWriter> writers = new HashMap<VideoJob, VideoWriter>();
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final Row row = writeStage.take(rows);
+                    if (row == Row.END)
+                        return;
+
+                    final long start = System.nanoTime();
+                    final VideoJob job = row.job;
+                    try
+                    {
+                        if (row.image != null)
+                        {
+                            if (!job.failed)
+                                getWriter(job).add(row.image);
+                        }
+                        else if (job.failed)
+                        {
+                            final VideoWriter writer = writers.remove(job);
+                            if (writer != null)
+                                writer.abort();
+                        }
+                        else
+                        {
+                            getWriter(job).finish();
+                            writers.remove(job);
+                            listener.stepDone(job.video);
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        job.failed = true;
+                        abort(job);
+                        listener.videoFailed(job.video, ex);
+                    }
+                    finally
+                    {
+                        writeStage.done(start);
+                    }
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Ingesta cancelada
+            }
+            finally
+            {
+                // Descarto los videos que no se han terminado de escribir
+                for (VideoJob job : writers.keySet().toArray(new VideoJob[writers.size()]))
+                {
+                    abort(job);
+                }
+            }
+        }
+
+        /**
+         * Devuelve el escritor de un video, creandolo con la primera imagen.
+         */
+        private VideoWriter getWriter(final VideoJob job) throws ClassNotFoundException, SQLException
+        {
+            VideoWriter writer = writers.get(job);
+            if (writer == null)
+            {
+                logger.log(Level.INFO, "Añadiendo el video {0} a la base de datos", job.video.getName());
+                writer = dbManager.createVideoWriter(job.video);
+                writers.put(job, writer);
+            }
+            return writer;
+        }
+
+        /**
+         * Abandona la escritura de un video sin propagar errores.
+         */
+        private void abort(final VideoJob job)
+        {
+            final VideoWriter writer = writers.remove(job);
+            if (writer == null)
+                return;
+            try
+            {
+                writer.abort();
+            }
+            catch (Exception ex)
+            {
+                logger.log(Level.WARNING, "No se han podido borrar las imagenes del video {0}: {1}", new Object[]{job.video.getName(), ex.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Video en proceso. Lleva la cuenta de los frames que quedan por filtrar
+     * para saber cuando se puede terminar de escribir.
+     */
+    private static class VideoJob
+    {
+        final Video video;
+        final AtomicInteger pending = new AtomicInteger(0);
+        volatile boolean failed = false;
+        private boolean decoded = false;
+        private boolean released = false;
+
+        VideoJob(final Video video)
+        {
+            this.video = video;
+        }
+
+        /**
+         * Indica que ya no van a llegar más frames del video.
+         * @return Verdadero si el video esta completamente filtrado
+         */
+        synchronized boolean decodeFinished()
+        {
+            decoded = true;
+            return release();
+        }
+
+        /**
+         * Indica que se ha filtrado uno de los frames del video.
+         * @return Verdadero si el video esta completamente filtrado
+         */
+        synchronized boolean frameFinished()
+        {
+            pending.decrementAndGet();
+            return release();
+        }
+
+        private boolean release()
+        {
+            if (decoded && pending.get() == 0 && !released)
+            {
+                released = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Frame pendiente de filtrar.
+     */
+    private static class Frame
+    {
+        static final Frame END = new Frame(null, 0, null, null);
+
+        final VideoJob job;
+        final int number;
+        final byte[] pixels;
+        final File file;
+
+        Frame(final VideoJob job, final int number, final byte[] pixels, final File file)
+        {
+            this.job = job;
+            this.number = number;
+            this.pixels = pixels;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Elemento de la etapa de escritura: una imagen filtrada o, si la imagen
+     * es nula, el aviso de que el video ya no tiene más imagenes.
+     */
+    private static class Row
+    {
+        static final Row END = new Row(null, null);
+
+        final VideoJob job;
+        final DatabaseImage image;
+
+        Row(final VideoJob job, final DatabaseImage image)
+        {
+            this.job = job;
+            this.image = image;
+        }
+    }
+
+    /**
+     * Métricas de una etapa.
+     */
+    private static class Stage
+    {
+        final String name;
+        final int threads;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong idleNanos = new AtomicLong();
+        final AtomicLong blockedNanos = new AtomicLong();
+        final AtomicInteger maxQueued = new AtomicInteger();
+
+        Stage(final String name, final int threads)
+        {
+            this.name = name;
+            this.threads = Math.max(1, threads);
+        }
+
+        /**
+         * Obtiene el siguiente elemento de la cola de entrada, anotando el
+         * tiempo que la etapa ha estado esperando.
+         */
+        <T> T take(final BlockingQueue<T> queue) throws InterruptedException
+        {
+            final long start = System.nanoTime();
+            final T item = queue.take();
+            idleNanos.addAndGet(System.nanoTime() - start);
+            return item;
+        }
+
+        /**
+         * Añade un elemento a la cola de salida, anotando el tiempo que la
+         * etapa ha estado bloqueada porque la cola estaba llena.
+         */
+        <T> void put(final BlockingQueue<T> queue, final T item) throws InterruptedException
+        {
+            final long start = System.nanoTime();
+            queue.put(item);
+            blockedNanos.addAndGet(System.nanoTime() - start);
+
+            final int size = queue.size();
+            int max;
+            while (size > (max = maxQueued.get()) && !maxQueued.compareAndSet(max, size));
+        }
+
+        /**
+         * Anota un elemento procesado.
+         * @param start Momento en que se empezó a procesar
+         */
+        void done(final long start)
+        {
+            items.incrementAndGet();
+            busyNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        @Override
+        public String toString()
+        {
+            final long ms = 1000000L;
+            return "Etapa " + name + " (" + threads + " threads): " + items.get() + " elementos"
+                 + ", ocupada " + busyNanos.get() / ms + " ms"
+                 + ", esperando entrada " + idleNanos.get() / ms + " ms"
+                 + ", bloqueada por salida " + blockedNanos.get() / ms + " ms"
+                 + ", cola de salida maxima " + maxQueued.get();
+        }
+    }
+}
@@ -22,8 +22,6 @@
 
 package es.davideg.uned.ii.proyecto.video;
 
-import es.davideg.uned.ii.proyecto.ConfigurationManager;
-import es.davideg.uned.ii.proyecto.image.ImageProcessor;
 import es.davideg.uned.ii.proyecto.crypt.Hash;
 import es.davideg.uned.ii.proyecto.image.DatabaseImage;
 import java.io.BufferedReader;
@@ -34,6 +32,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -41,6 +40,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Clase que representa a un video.
@@ -54,9 +54,16 @@ public final class Video
     private File file;              // Fichero de video
     private String hash;            // Hash que identifica univocamente al video
     private File framesDir;         // Directorio temporal donde se guardan las imagenes
+    private FrameStore frameStore;  // Almacén con los frames, nulo si se guardan como imagenes
+    private double frameRate;       // Frames por segundo, 0 si no se conocen
     private Vector<DatabaseImage> images = new Vector<DatabaseImage>();      // Imagenes a las que ya se han aplicado los filtros
     private static final Logger logger = Logger.getLogger(Video.class.getName());
 
+    // Nombre de los ficheros de los frames: output<numero>.bmp
+    private static final String FRAME_PREFIX = "output";
+    private static final String FRAME_SUFFIX = ".bmp";
+    private static final long STREAM_TIMEOUT = 10;  // Segundos de espera a la salida de ffmpeg
+
     /**
      * Crea un video
      * @param f Fichero con el video a procesar
@@ -166,39 +173,8 @@ public final class Video
     public File generateImages(final File tmpDir, final int width, final int height) throws IOException, InterruptedException
     {
     
-        class StreamPrinter implements Runnable
-        {
-            InputStream is;
-            String type;
-            
-            public StreamPrinter(InputStream is, String type)
-            {
-                this.is = is;
-                this.type = type;
-            }
-            
-            @Override
-            public void run()
-            {
-                try
-                {
-                    InputStreamReader isr = new InputStreamReader(is);
-                    BufferedReader br = new BufferedReader(isr);
-                    String line = null;
-                    while ((line = br.readLine()) != null)
-                        logger.log(Level.INFO, "{0}>{1}", new Object[]{type, line});
-                }
-                catch (IOException ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
-        }
-
-
         // Creo la carpeta donde se van a guardar las imagenes
-        this.framesDir = new File(Matcher.quoteReplacement(tmpDir.getAbsoluteFile() + File.separator + this.getHash()));
-        this.getFramesDir().mkdirs();
+        createFramesDir(tmpDir);
 
         // Proceso el video
         Process p = Runtime.getRuntime().exec(
@@ -214,7 +190,7 @@ public final class Video
                 , "-threads"
                 , "2"
                 , "-an"
-                , Matcher.quoteReplacement(getFramesDir().getAbsolutePath() + File.separator + "output%d.bmp")
+                , Matcher.quoteReplacement(getFramesDir().getAbsolutePath() + File.separator + FRAME_PREFIX + "%d" + FRAME_SUFFIX)
             }
         );
         StreamPrinter stdStream = new StreamPrinter(p.getInputStream(), "FFMPEG");
@@ -226,6 +202,9 @@ public final class Video
         exec.shutdown();
 
         int exitVal = p.waitFor();
+        exec.awaitTermination(STREAM_TIMEOUT, TimeUnit.SECONDS);
+        if (errStream.getFrameRate() > 0)
+            setFrameRate(errStream.getFrameRate());
 
         logger.log(Level.INFO, "Ffmpeg ExitValue: {0}", exitVal);
 
@@ -233,40 +212,160 @@ public final class Video
     }
 
     /**
-     * Procesa cada uno de los frames del video aplicando a cada imagen
-     * un filtro haar. Las imagenes resultantes quedan almacenadas en
-     * images.
+     * <p>Decodifica el video y entrega sus frames uno a uno.</p>
+     * <p>ffmpeg escribe los frames en su salida estandar en formato
+     * <code>rawvideo</code> con pixeles en escala de grises, de modo que no
+     * hay que generar un fichero por frame y volver a leerlo despues.</p>
+     * @param width Anchura de los frames
+     * @param height Altura de los frames
+     * @param handler Receptor de los frames
+     * @return Número de frames decodificados
+     * @throws IOException
+     * @throws InterruptedException
      */
-    public void generateFilteredImages(final int width, final int height)
+    public int decodeFrames(final int width, final int height, final FrameHandler handler) throws IOException, InterruptedException
     {
-        int maxThreads;
+        // Proceso el video enviando los frames a la salida estandar
+        Process p = Runtime.getRuntime().exec(
+            new String[]
+            {
+                  "ffmpeg"
+                , "-i"
+                , Matcher.quoteReplacement(file.getAbsolutePath())
+                , "-f"
+                , "rawvideo"
+                , "-pix_fmt"
+                , "gray"
+                , "-s"
+                , width + "x" + height
+                , "-threads"
+                , "2"
+                , "-an"
+                , "-"
+            }
+        );
+        final StreamPrinter errors = new StreamPrinter(p.getErrorStream(), "FFMPEG");
+        ExecutorService printer = Executors.newSingleThreadExecutor();
+        printer.submit(errors);
+        printer.shutdown();
+
+        final FrameReader reader = new FrameReader(p.getInputStream(), width, height);
+        boolean finished = false;
         try
         {
-            maxThreads = Integer.parseInt(ConfigurationManager.getProperty("system.thread.filter"));
+            byte[] frame = new byte[reader.getFrameSize()];
+            while (reader.read(frame))
+            {
+                handler.frame(reader.getFrameNumber(), frame);
+                frame = new byte[reader.getFrameSize()];
+            }
+            finished = true;
         }
-        catch(Exception ex)
+        finally
         {
-            maxThreads = 1;
-            logger.log(Level.WARNING, "No se puede obtener el numero maximo de threads: {0}", ex.getMessage());
+            // Si no se ha terminado de leer no tiene sentido que ffmpeg siga
+            if (!finished)
+                p.destroy();
+            reader.close();
         }
-        logger.log(Level.INFO, "Se usaran {0} threads para procesar las imagenes", maxThreads);
-        
-        ExecutorService exec = Executors.newFixedThreadPool(maxThreads);
 
-        for(File f : this.getFramesDir().listFiles())
-        {
-            int position = Integer.valueOf(f.getName().replaceAll("\\D", ""));
-            exec.execute(new ImageProcessor(f, position, width, height, images));
-        }
-        exec.shutdown();
+        int exitVal = p.waitFor();
+        printer.awaitTermination(STREAM_TIMEOUT, TimeUnit.SECONDS);
+        if (errors.getFrameRate() > 0)
+            setFrameRate(errors.getFrameRate());
+        logger.log(Level.INFO, "Ffmpeg ExitValue: {0}", exitVal);
+        logger.log(Level.INFO, "Se han decodificado {0} frames ({1} fps)", new Object[]{reader.getFrameNumber(), getFrameRate()});
+
+        return reader.getFrameNumber();
+    }
+
+    /**
+     * <p>Obtiene un único frame del video con ffmpeg, sin decodificar los
+     * anteriores.</p>
+     * <p>ffmpeg se situa en el instante del frame a partir de los frames por
+     * segundo del video, así que el frame obtenido puede no ser exactamente
+     * el pedido en videos con velocidad variable. Se pide medio frame antes
+     * de su instante para que los redondeos no lleven al frame siguiente.</p>
+     * @param frame Número de frame, empezando por 1
+     * @param width Anchura del frame
+     * @param height Altura del frame
+     * @return Pixeles del frame en escala de grises
+     * @throws IOException Si no se conocen los frames por segundo o ffmpeg no devuelve el frame
+     * @throws InterruptedException
+     */
+    public byte[] extractFrame(final int frame, final int width, final int height) throws IOException, InterruptedException
+    {
+        if (getFrameRate() <= 0)
+            throw new IOException("No se conocen los frames por segundo del video " + getName());
+
+        final double position = Math.max(0, (frame - 1.5) / getFrameRate());
+        Process p = Runtime.getRuntime().exec(
+            new String[]
+            {
+                  "ffmpeg"
+                , "-ss"
+                , String.format(Locale.US, "%.3f", position)
+                , "-i"
+                , Matcher.quoteReplacement(file.getAbsolutePath())
+                , "-vframes"
+                , "1"
+                , "-f"
+                , "rawvideo"
+                , "-pix_fmt"
+                , "gray"
+                , "-s"
+                , width + "x" + height
+                , "-an"
+                , "-"
+            }
+        );
+        ExecutorService printer = Executors.newSingleThreadExecutor();
+        printer.submit(new StreamPrinter(p.getErrorStream(), "FFMPEG"));
+        printer.shutdown();
+
+        final FrameReader reader = new FrameReader(p.getInputStream(), width, height);
+        final byte[] pixels = new byte[reader.getFrameSize()];
+        boolean found = false;
         try
         {
-            exec.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+            found = reader.read(pixels);
         }
-        catch (InterruptedException ex)
+        finally
         {
-            logger.log(Level.SEVERE, "Error al procesar las imagenes: {0}", ex.getMessage());
+            // Si no se ha leido el frame no tiene sentido que ffmpeg siga
+            if (!found)
+                p.destroy();
+            reader.close();
+            p.waitFor();
+            printer.awaitTermination(STREAM_TIMEOUT, TimeUnit.SECONDS);
         }
+
+        if (!found)
+            throw new IOException("No se ha podido obtener el frame " + frame + " del video " + getName());
+        return pixels;
+    }
+
+    /**
+     * Crea la carpeta donde se guardan los frames del video. La carpeta
+     * tiene como nombre el hash del video.
+     * @param tmpDir Directorio donde se van a colocar los frames
+     * @return Carpeta donde se guardan los frames del video
+     */
+    public File createFramesDir(final File tmpDir)
+    {
+        this.framesDir = new File(Matcher.quoteReplacement(tmpDir.getAbsoluteFile() + File.separator + this.getHash()));
+        this.getFramesDir().mkdirs();
+        return this.getFramesDir();
+    }
+
+    /**
+     * Devuelve el fichero donde se guarda un frame del video.
+     * @param frame Número de frame
+     * @return Fichero con el frame
+     */
+    public File getFrameFile(final int frame)
+    {
+        return new File(getFramesDir(), FRAME_PREFIX + frame + FRAME_SUFFIX);
     }
 
     /**
@@ -299,6 +398,43 @@ public final class Video
         return framesDir;
     }
 
+    /**
+     * Establece los frames por segundo del video.
+     * @param frameRate Frames por segundo, 0 si no se conocen
+     */
+    public void setFrameRate(final double frameRate)
+    {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Devuelve los frames por segundo del video, tal y como los indica
+     * ffmpeg al decodificarlo.
+     * @return Frames por segundo, 0 si no se conocen
+     */
+    public double getFrameRate()
+    {
+        return frameRate;
+    }
+
+    /**
+     * Establece el almacén donde están los frames del video.
+     * @param frameStore Almacén de frames, nulo si los frames son ficheros bmp
+     */
+    public void setFrameStore(final FrameStore frameStore)
+    {
+        this.frameStore = frameStore;
+    }
+
+    /**
+     * Devuelve el almacén donde están los frames del video.
+     * @return Almacén de frames, o nulo si los frames son ficheros bmp
+     */
+    public FrameStore getFrameStore()
+    {
+        return frameStore;
+    }
+
     
     @Override
     public boolean equals(Object v2)
@@ -320,4 +456,77 @@ public final class Video
         myhash = 73 * myhash + (this.hash != null ? this.hash.hashCode() : 0);
         return myhash;
     }
+
+    /**
+     * Escribe en el log todo lo que llega por un flujo de datos. Se usa para
+     * vaciar las salidas de ffmpeg.
+     */
+    private static class StreamPrinter implements Runnable
+    {
+        // Velocidad del video en las lineas "Stream #0.0: Video: ..." de ffmpeg
+        private static final Pattern FRAME_RATE = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(fps|tbr|tb\\(r\\))");
+
+        private InputStream is;
+        private String type;
+        private volatile double frameRate;
+
+        public StreamPrinter(InputStream is, String type)
+        {
+            this.is = is;
+            this.type = type;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                InputStreamReader isr = new InputStreamReader(is);
+                BufferedReader br = new BufferedReader(isr);
+                String line = null;
+                while ((line = br.readLine()) != null)
+                {
+                    logger.log(Level.INFO, "{0}>{1}", new Object[]{type, line});
+                    if (frameRate == 0 && line.contains("Video:"))
+                        parseFrameRate(line);
+                }
+            }
+            catch (IOException ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * Obtiene los frames por segundo de la descripción del stream de
+         * video. Se prefiere el valor fps y si no aparece el tbr.
+         * @param line Línea de la salida de ffmpeg
+         */
+        private void parseFrameRate(final String line)
+        {
+            double tbr = 0;
+            final Matcher m = FRAME_RATE.matcher(line);
+            while (m.find())
+            {
+                final double value = Double.parseDouble(m.group(1));
+                if (m.group(2).equals("fps"))
+                {
+                    frameRate = value;
+                    return;
+                }
+                if (tbr == 0)
+                    tbr = value;
+            }
+            frameRate = tbr;
+        }
+
+        /**
+         * Devuelve los frames por segundo leidos de la salida de ffmpeg.
+         * @return Frames por segundo, 0 si no se han encontrado
+         */
+        public double getFrameRate()
+        {
+            return frameRate;
+        }
+    }
 }
@@ -21,14 +21,14 @@
 */
 package es.davideg.uned.ii.proyecto.video;
 
-import es.davideg.uned.ii.proyecto.crypt.Hash;
+import es.davideg.uned.ii.proyecto.ConfigurationManager;
 import es.davideg.uned.ii.proyecto.db.DbManager;
+import es.davideg.uned.ii.proyecto.db.DbSettings;
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.text.MessageFormat;
-import java.util.Date;
 import java.util.List;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
@@ -47,6 +47,7 @@ public class VideoTask extends SwingWorker<Boolean, Object>
     
     // Mensajes de error
     private StringBuffer errorMessage = new StringBuffer();
+    private volatile boolean errorFound = false;
 
     private final ResourceBundle bundle = ResourceBundle.getBundle("configuration/language");
     private static final Logger logger = Logger.getLogger(VideoTask.class.getName());
@@ -57,14 +58,11 @@ public class VideoTask extends SwingWorker<Boolean, Object>
     private int WAVELET_WIDTH;
     private int WAVELET_HEIGHT;
     
-    // Contadores para medir tiempos
-    private long timeHash = 0;
-    private long timeFrames = 0;
-    private long timeProccess = 0;
-    private long timeDb = 0;
-    
     private int step = 10;
 
+    // Modo de ingesta en el que ffmpeg genera un fichero bmp por frame
+    private static final String INGEST_FILES = "files";
+
     /**
      * Crea un nuevo objecto VideoTask.
      * @param dbManager Base de datos en la que se añadirán o elimarán videos
@@ -93,40 +91,45 @@ public class VideoTask extends SwingWorker<Boolean, Object>
     @Override
     public Boolean doInBackground()
     {
-        final String strVideoAdd = bundle.getString("processing.add");
-        final String strVideoRemove = bundle.getString("processing.remove");
-        boolean errorFound = false;
-
         if (!getConfiguration())
             return false;
         
         // Añado los nuevos videos
-        for(Video video : newVideos)
+        if (!newVideos.isEmpty())
         {
-            if (this.isCancelled()) return true;
-            setMessage(MessageFormat.format(strVideoAdd, video.getName()));
-            if (!addVideo(video))
-                errorFound = true;
+            final boolean pipeMode = !INGEST_FILES.equals(ConfigurationManager.getProperty("video.ingest"));
+            final IngestPipeline pipeline = new IngestPipeline(dbManager
+                                                             , IMAGE_PATH
+                                                             , IMAGE_WIDTH
+                                                             , IMAGE_HEIGHT
+                                                             , WAVELET_WIDTH
+                                                             , WAVELET_HEIGHT
+                                                             , pipeMode
+                                                             , new IngestListener());
+            try
+            {
+                pipeline.run(newVideos);
+            }
+            catch (InterruptedException ex)
+            {
+                logger.log(Level.INFO, "Proceso VideoAddTask cancelado");
+                return true;
+            }
+            finally
+            {
+                logger.log(Level.INFO, "Metricas de la ingesta:\n{0}", pipeline.getMetrics());
+            }
         }
-        logger.log(Level.INFO, "Tiempo empleado en calcular hashes: {0}" + "\n" +
-                              "Tiempo empleado en obtener frames: {1}" + "\n" +
-                              "Tiempo empleado en procesar frames: {2}" + "\n" +
-                              "Tiempo empleado en añadir a base de datos: {3}"
-                , new Object[]{timeHash, timeFrames, timeProccess, timeDb});
 
         // Elimino los que se han borrado
-        for(Video video : oldVideos)
+        if (!oldVideos.isEmpty())
         {
             if (this.isCancelled()) return true;
-            setMessage(MessageFormat.format(strVideoRemove, video.getName()));
-            if (!removeVideo(video))
+            if (!removeVideos(oldVideos))
                 errorFound = true;
         }
         
-        // Fin del proceso
-        try { dbManager.disconnect(); }
-        catch (SQLException ex) { logger.log(Level.SEVERE, "No se ha podido desconectar de la base de datos", ex.getMessage()); }
-        
+        // Fin del proceso, la conexión sigue abierta para las busquedas
         setProgress(100);
         logger.log(Level.INFO, "Proceso VideoAddTask finalizado");
         return !errorFound;
@@ -139,9 +142,11 @@ public class VideoTask extends SwingWorker<Boolean, Object>
     private boolean getConfiguration()
     {
         // Obtengo configuracion
+        final DbSettings settings;
         try
         {
-            IMAGE_PATH = new File(dbManager.getProperty(DbManager.DbProperty.FRAMES_PATH));
+            settings = dbManager.getSettings();
+            IMAGE_PATH = settings.getFramesPath();
         }
         catch (Exception ex)
         {
@@ -153,10 +158,10 @@ public class VideoTask extends SwingWorker<Boolean, Object>
 
         try
         {
-            IMAGE_WIDTH    = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.IMAGE_SIZE_X));
-            IMAGE_HEIGHT   = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.IMAGE_SIZE_Y));
-            WAVELET_WIDTH  = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.HAAR_SIZE_X));
-            WAVELET_HEIGHT = Integer.valueOf(dbManager.getProperty(DbManager.DbProperty.HAAR_SIZE_Y));
+            IMAGE_WIDTH    = settings.getImageWidth();
+            IMAGE_HEIGHT   = settings.getImageHeight();
+            WAVELET_WIDTH  = settings.getHaarWidth();
+            WAVELET_HEIGHT = settings.getHaarHeight();
         }
         catch(Exception ex)
         {
@@ -169,148 +174,99 @@ public class VideoTask extends SwingWorker<Boolean, Object>
     }
 
     /**
-     * <p>Añade un vídeo a la base de datos.</p>
-     * <p>Esta tarea realiza basicamente los siguientes pasos: 
-     *      <ol>
-     *          <li>Genera imágenes correspondientes a los frames del vídeo.</li>
-     *          <li>Procesa cada uno de los frames usando un filtro wavelet</li>
-     *          <li>Añade cada uno de los frames procesados a la base de datos</li>
-     *      </ol>
-     * </p>
-     * @param video Vídeo a añadir
-     * @return Verdadero si se ha añadido correctamente el vídeo
+     * <p>Registra el error producido al añadir un vídeo a la base de datos.</p>
+     * @param video Vídeo que se estaba añadiendo
+     * @param ex Error producido
      */
-    private boolean addVideo(final Video video)
+    private void reportError(final Video video, final Exception ex)
     {
-        try
-        {
-            Date now = new Date();
-
-            if (!dbManager.existsVideo(video))
-            {
-                logger.log(Level.INFO, "Generando hash del video {0}", video.getName());
-                video.setHash(Hash.getHash(video.getFile()));
-                increaseProgress(step);
-                timeHash += new Date().getTime() - now.getTime();
-                now = new Date();
-
-                logger.log(Level.INFO, "Obteniendo frames del video {0}", video.getName());
-                video.generateImages(IMAGE_PATH, IMAGE_WIDTH, IMAGE_HEIGHT);
-                increaseProgress(step);
-                timeFrames += new Date().getTime() - now.getTime();
-                now = new Date();
-
-                logger.log(Level.INFO, "Procesando imagenes del video: {0}", video.getName());
-                video.generateFilteredImages(WAVELET_WIDTH, WAVELET_HEIGHT);
-                increaseProgress(step);
-                timeProccess += new Date().getTime() - now.getTime();
-                now = new Date();
-
-                logger.log(Level.INFO, "Añadiendo el video {0} a la base de datos", video.getName());
-                dbManager.addVideo(video);
-                dbManager.disconnect();
-                increaseProgress(step);
-                timeDb += new Date().getTime() - now.getTime();
-                now = new Date();
-            }
-            else
-            {
-                logger.log(Level.WARNING, "El video {0} ya existe en la base de datos. No se hace nada", video.getName());
-                errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_exists_0"), video.getName()));
-                errorMessage.append("\n");
-                return false;
-            }
-        }
-        catch (NoSuchAlgorithmException ex)
+        final String key;
+        if (ex instanceof NoSuchAlgorithmException)
         {
             logger.log(Level.SEVERE, "No se puede calcular un hash para el video: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_hash_0"), video.getName()));
-            errorMessage.append("\n");
-            return false;
+            key = "error.processing.video_hash_0";
         }
-        catch (IOException ex)
+        else if (ex instanceof IOException)
         {
             logger.log(Level.SEVERE, "Error de lectura: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_read_0"), video.getName()));
-            errorMessage.append("\n");
-            return false;
+            key = "error.processing.video_read_0";
         }
-        catch (InterruptedException ex)
+        else if (ex instanceof InterruptedException)
         {
             logger.log(Level.SEVERE, "Error: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_interrupted_0"), video.getName()));
-            errorMessage.append("\n");
-            return false;
+            key = "error.processing.video_interrupted_0";
         }
-        catch(SQLException ex)
+        else
         {
             logger.log(Level.SEVERE, "Error de base de datos al añadir video: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_database_0"), video.getName()));
-            errorMessage.append("\n");
-            return false;
-        }
-        catch(ClassNotFoundException ex)
-        {
-            logger.log(Level.SEVERE, "Error de base de datos al añadir video: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_database_0"), video.getName()));
-            errorMessage.append("\n");
-            return false;
+            key = "error.processing.video_database_0";
         }
-        return true;
+        errorMessage.append(MessageFormat.format(bundle.getString(key), video.getName()));
+        errorMessage.append("\n");
+        errorFound = true;
     }
 
     /**
-     * <p>Elimina un vídeo de la base de datos.</p>
-     * <p>Se realizan dos pasos:
-     *      <ol>
-     *          <li>Se elimina los frames del vídeo del disco</li>
-     *          <li>Se elimina el video y los frames de la base de datos</li>
-     *      </ol>
-     * </p>
-     * 
-     * @param video Video a eliminar
-     * @return Verdadero si no ha habido problemas
+     * <p>Recibe el avance de la ingesta de vídeos.</p>
+     * <p>Por cada vídeo se informa de cuatro pasos: cálculo del hash,
+     * obtención de frames, procesado de frames y escritura en la base de
+     * datos.</p>
      */
-    private boolean removeVideo(Video video)
+    private class IngestListener implements IngestPipeline.Listener
     {
-        boolean errorFound = false;
-        logger.log(Level.INFO, "Eliminando video {0}", video.getName());
-
-        try
+        @Override
+        public void stepDone(final Video video)
         {
-            String image_path = dbManager.getProperty(DbManager.DbProperty.FRAMES_PATH);
-            image_path += File.separator + video.getHash();
-
-            File imagesFolder = new File(image_path);
-            for (File f : imagesFolder.listFiles())
-            {
-                f.delete();
-            }
-            imagesFolder.delete();
+            setMessage(MessageFormat.format(bundle.getString("processing.add"), video.getName()));
+            increaseProgress(step);
         }
-        catch (Exception ex)
+
+        @Override
+        public void videoExists(final Video video)
         {
-            logger.log(Level.WARNING, "No se pueden eliminar las imagenes del disco: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.images_delete_0"), video.getName()));
+            logger.log(Level.WARNING, "El video {0} ya existe en la base de datos. No se hace nada", video.getName());
+            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_exists_0"), video.getName()));
             errorMessage.append("\n");
             errorFound = true;
         }
 
+        @Override
+        public void videoFailed(final Video video, final Exception ex)
+        {
+            reportError(video, ex);
+        }
+    }
+
+    /**
+     * <p>Elimina de una vez los vídeos de la base de datos.</p>
+     * <p>Los frames de los vídeos se borran en segundo plano, la tarea no
+     * espera a que terminen de borrarse.</p>
+     * @param videos Videos a eliminar
+     * @return Verdadero si no ha habido problemas
+     */
+    private boolean removeVideos(final List<Video> videos)
+    {
+        logger.log(Level.INFO, "Eliminando {0} videos", videos.size());
+        setMessage(MessageFormat.format(bundle.getString("processing.remove_all"), videos.size()));
+
+        boolean errorFound = false;
         try
         {
-            dbManager.removeVideo(video);
+            dbManager.removeVideos(videos);
         }
         catch(Exception ex)
         {
-            logger.log(Level.SEVERE, "Error de base de datos al eliminar video: {0}", ex.getMessage());
-            errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_deletedb_0"), video.getName()));
-            errorMessage.append("\n");
+            logger.log(Level.SEVERE, "Error de base de datos al eliminar videos: {0}", ex.getMessage());
+            for (Video video : videos)
+            {
+                errorMessage.append(MessageFormat.format(bundle.getString("error.processing.video_deletedb_0"), video.getName()));
+                errorMessage.append("\n");
+            }
             errorFound = true;
         }
-        increaseProgress(step);
+        increaseProgress(step * videos.size());
         return !errorFound;
     }
-    
 
     /**
      * Devuelve el mensaje de error producido en la llamada al metodo <code>
@@ -326,7 +282,7 @@ public class VideoTask extends SwingWorker<Boolean, Object>
      * Incrementa el progreso de la tarea.
      * @param rise Incremento
      */
-    private void increaseProgress(final int rise)
+    private synchronized void increaseProgress(final int rise)
     {
         setProgress(getProgress() + rise);
     }